@@ -0,0 +1,660 @@
+package ch.ethz.mbench.client;
+
+import ch.ethz.mbench.server.BatchOpResult;
+import ch.ethz.mbench.server.KeyChooser;
+import ch.ethz.mbench.server.LatencyHistogram;
+import ch.ethz.mbench.server.Response;
+import ch.ethz.mbench.server.ServerCmd;
+import ch.ethz.mbench.server.StatsResult;
+
+import org.apache.commons.cli.CommandLine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static ch.ethz.mbench.server.ServerCmd.ServerCmdType.*;
+
+/**
+ * Drives BATCH_OPs from several worker threads over many connections.
+ * The table is populated first, every connection loading its share of the keys, then batches run
+ * through a warmup and a measured period. Every connection plays a client of its own with its own
+ * key range, results of all workers are aggregated at the end.
+ * Without a target rate every connection sends its next batch as soon as the previous one is answered
+ * (closed loop). With a target rate batches are scheduled on a fixed timeline (open loop), a batch
+ * due while the previous one is still running is sent late and its latency counts from the time it
+ * was due, so that a stalled server is not hidden by requests that were never sent.
+ * A run is made of steps, each one a warmup and a measured period at a rate. Between steps workers
+ * pause with no batch outstanding, which lets an SLA search try one rate after the other.
+ * With a report prefix every worker also cuts its responses into fixed intervals, which are written
+ * to a RunReport together with the configuration, the steps and the server side latencies.
+ */
+public class LoadGenerator {
+
+    // workers have no batch outstanding and wait for the next step
+    private static final int PAUSE = 0;
+    private static final int WARMUP = 1;
+    private static final int MEASURE = 2;
+    private static final int DONE = 3;
+    private static final String[] PHASE_NAMES = {"pause", "warmup", "measure"};
+    // the SLA search gives up doubling after this many steps that met the target
+    private static final int MAX_SEARCH_DOUBLINGS = 16;
+    // a step reaching less of its target rate is saturated and misses the SLA whatever its latency
+    private static final double MIN_RATE_FRACTION = 0.9;
+
+    private final String host;
+    private final int port;
+    private final int nWorkers;
+    private final int nConnections;
+    private final double scalingFactor;
+    private final long nRows;
+    private final boolean populate;
+    private final int batchSize;
+    private final double iProb;
+    private final double dProb;
+    private final double uProb;
+    private final byte keyDist;
+    private final double distParam1;
+    private final double distParam2;
+    private final long warmupMillis;
+    private final long durationMillis;
+    // batches per second of the single run, 0 for closed loop
+    private final double rate;
+    // p99 target in milliseconds of the SLA search, 0 runs a single step
+    private final double slaMillis;
+    private final double searchStartRate;
+    private final long stepWarmupMillis;
+    private final long stepMillis;
+    // file name prefix of the run report, null for none
+    private final String reportPrefix;
+    private final long reportIntervalNanos;
+
+    // time between two batches of the same connection in the current step, 0 for closed loop
+    private volatile long intervalNanos;
+    private volatile CountDownLatch paused;
+    private Worker[] workers;
+    private RunReport report;
+    // start of the first step, intervals of the report count from here
+    private volatile long runStart;
+    private volatile int step;
+
+    private volatile int phase = PAUSE;
+
+    public LoadGenerator(CommandLine commandLine) {
+        host = commandLine.getOptionValue("H", "127.0.0.1");
+        port = Integer.parseInt(commandLine.getOptionValue("p", "8713"));
+        nWorkers = Integer.parseInt(commandLine.getOptionValue("w", "1"));
+        nConnections = Integer.parseInt(commandLine.getOptionValue("c", Integer.toString(nWorkers)));
+        scalingFactor = Double.parseDouble(commandLine.getOptionValue("s", "1"));
+        nRows = (long) (scalingFactor * 1000000);
+        populate = !commandLine.hasOption("np");
+        batchSize = Integer.parseInt(commandLine.getOptionValue("bo", "100"));
+        iProb = Double.parseDouble(commandLine.getOptionValue("ip", "0.2"));
+        dProb = Double.parseDouble(commandLine.getOptionValue("dp", "0.2"));
+        uProb = Double.parseDouble(commandLine.getOptionValue("up", "0.4"));
+        keyDist = KeyChooser.fromName(commandLine.getOptionValue("kd", "uniform"));
+        distParam1 = Double.parseDouble(commandLine.getOptionValue("kp1", "0"));
+        distParam2 = Double.parseDouble(commandLine.getOptionValue("kp2", "0"));
+        warmupMillis = (long) (Double.parseDouble(commandLine.getOptionValue("wu", "5")) * 1000);
+        durationMillis = (long) (Double.parseDouble(commandLine.getOptionValue("d", "30")) * 1000);
+        rate = Double.parseDouble(commandLine.getOptionValue("r", "0"));
+        slaMillis = Double.parseDouble(commandLine.getOptionValue("sla", "0"));
+        searchStartRate = Double.parseDouble(commandLine.getOptionValue("sr", "1000"));
+        stepWarmupMillis = (long) (Double.parseDouble(commandLine.getOptionValue("sw", "2")) * 1000);
+        stepMillis = (long) (Double.parseDouble(commandLine.getOptionValue("sd", "10")) * 1000);
+        reportPrefix = commandLine.getOptionValue("o");
+        reportIntervalNanos = (long) (Double.parseDouble(commandLine.getOptionValue("ri", "1")) * 1e9);
+        if (nConnections < nWorkers)
+            throw new IllegalArgumentException("Every worker needs at least one connection");
+        if (nRows < nConnections)
+            throw new IllegalArgumentException("Every connection needs at least one row");
+    }
+
+    public void run() throws IOException, InterruptedException {
+        MbConnection control = new MbConnection(host, port);
+        if (reportPrefix != null) {
+            report = new RunReport(reportPrefix, nWorkers, reportIntervalNanos, batchSize);
+            report.writeConfig(getConfig(control));
+        }
+        try {
+            run(control);
+        } finally {
+            if (report != null)
+                report.close();
+        }
+    }
+
+    private void run(MbConnection control) throws IOException, InterruptedException {
+        if (populate) {
+            control.send(ServerCmd.createSchema((int) Math.ceil(scalingFactor)));
+            Response resp = new Response();
+            resp.decode(CREATE_SCHEMA, control.awaitFrame());
+            if (!resp.isSuccess())
+                throw new IllegalStateException("Creating the schema failed: " + resp.getErrorMsg());
+        }
+
+        workers = new Worker[nWorkers];
+        Thread[] threads = new Thread[nWorkers];
+        paused = new CountDownLatch(nWorkers);
+        for (int w = 0; w < nWorkers; w++) {
+            // connections are dealt round robin, connection i is client i
+            int n = (nConnections - w + nWorkers - 1) / nWorkers;
+            int[] clientIds = new int[n];
+            for (int i = 0; i < n; i++)
+                clientIds[i] = w + i * nWorkers;
+            workers[w] = new Worker(w, clientIds);
+            threads[w] = new Thread(workers[w], "mbench-load-" + w);
+            threads[w].start();
+        }
+
+        // workers pause once they populated their share
+        long t0 = System.nanoTime();
+        try {
+            awaitPaused();
+            long populateNanos = System.nanoTime() - t0;
+            if (populate) {
+                System.out.println(String.format("Populated %d rows in %.3fs (%.1f rows/s)", nRows,
+                        populateNanos / 1e9, nRows * 1e9 / populateNanos));
+                if (report != null)
+                    writePopulate(populateNanos);
+            }
+            runStart = System.nanoTime();
+            if (slaMillis > 0) {
+                searchSla();
+            } else {
+                StepResult result = runStep(rate, warmupMillis, durationMillis);
+                result.print(System.out);
+            }
+        } finally {
+            // the workers still alive stop, also when the run is given up
+            phase = DONE;
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        control.send(new ServerCmd(LATENCY));
+        Response latency = new Response();
+        latency.decode(LATENCY, control.awaitFrame());
+        System.out.print("Server side latencies:\n" + latency.getLatency());
+        if (report != null)
+            report.writeServerLatency(latency.getLatency());
+        control.close();
+    }
+
+    /**
+     * Configuration of the run, completed by what the server reports about itself
+     */
+    private Map<String, Object> getConfig(MbConnection control) throws IOException {
+        Map<String, Object> config = new LinkedHashMap<>();
+        // only the configuration is of interest, the rate window of the session stays untouched
+        control.send(ServerCmd.stats(true));
+        Response resp = new Response();
+        resp.decode(STATS, control.awaitFrame());
+        StatsResult stats = resp.getStats();
+        config.put("backend", stats.getBackend());
+        config.put("n_cols", stats.getNCols());
+        config.put("scaling_factor", scalingFactor);
+        config.put("rows", nRows);
+        config.put("populate", populate);
+        config.put("workers", nWorkers);
+        config.put("connections", nConnections);
+        config.put("batch_ops", batchSize);
+        config.put("insert_prob", iProb);
+        config.put("delete_prob", dProb);
+        config.put("update_prob", uProb);
+        config.put("key_dist", KeyChooser.getName(keyDist));
+        config.put("key_param1", distParam1);
+        config.put("key_param2", distParam2);
+        config.put("rate", rate);
+        config.put("sla_ms", slaMillis);
+        config.put("warmup_s", warmupMillis / 1000.0);
+        config.put("duration_s", durationMillis / 1000.0);
+        config.put("report_interval_s", reportIntervalNanos / 1e9);
+        return config;
+    }
+
+    private void writePopulate(long populateNanos) throws IOException {
+        LatencyHistogram latency = new LatencyHistogram();
+        for (Worker worker : workers)
+            latency.add(worker.latency);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("type", POPULATE.toString());
+        fields.put("rows", nRows);
+        fields.put("seconds", populateNanos / 1e9);
+        fields.put("rows_per_s", nRows * 1e9 / populateNanos);
+        report.writeSummary("populate", fields, latency, null);
+    }
+
+    /**
+     * Runs the workers at a rate (0 for closed loop) and returns what they measured
+     */
+    private StepResult runStep(double stepRate, long warmup, long duration) throws InterruptedException, IOException {
+        for (Worker worker : workers)
+            worker.reset();
+        step++;
+        intervalNanos = stepRate > 0 ? Math.max(1, (long) (1e9 * nConnections / stepRate)) : 0;
+        // created before the step starts, so that a worker failing during the step counts it down
+        paused = new CountDownLatch(nWorkers);
+        phase = WARMUP;
+        sleepChecking(warmup);
+        long measureStart = System.nanoTime();
+        phase = MEASURE;
+        sleepChecking(duration);
+        long measureNanos = System.nanoTime() - measureStart;
+        phase = PAUSE;
+        awaitPaused();
+
+        StepResult result = new StepResult(stepRate, measureNanos);
+        for (Worker worker : workers) {
+            result.latency.add(worker.latency);
+            result.uncorrected.add(worker.uncorrected);
+            result.batches += worker.batches;
+            result.failedBatches += worker.failedBatches;
+            result.serverRt += worker.serverRt;
+        }
+        if (report != null)
+            result.write(report);
+        return result;
+    }
+
+    /**
+     * Waits until every worker paused, giving up as soon as one of them failed
+     */
+    private void awaitPaused() throws InterruptedException {
+        while (!paused.await(100, TimeUnit.MILLISECONDS))
+            checkWorkers();
+        checkWorkers();
+    }
+
+    // sleeps while the workers run, giving up as soon as one of them failed
+    private void sleepChecking(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        long left;
+        while ((left = end - System.currentTimeMillis()) > 0) {
+            Thread.sleep(Math.min(left, 100));
+            checkWorkers();
+        }
+    }
+
+    private void checkWorkers() {
+        for (Worker worker : workers) {
+            if (worker.error != null)
+                throw new IllegalStateException("Worker failed", worker.error);
+        }
+    }
+
+    /**
+     * Doubles the rate while steps meet the target, at most MAX_SEARCH_DOUBLINGS times, then bisects
+     * between the last rate that met it and the first that did not
+     */
+    private void searchSla() throws InterruptedException, IOException {
+        long slaNanos = (long) (slaMillis * 1000000);
+        List<StepResult> curve = new ArrayList<>();
+        double good = 0;
+        double bad = 0;
+        double stepRate = searchStartRate;
+        for (int i = 0; i <= MAX_SEARCH_DOUBLINGS && bad == 0; i++) {
+            StepResult result = runSearchStep(stepRate, slaNanos, curve);
+            if (result.meets(slaNanos)) {
+                good = stepRate;
+                stepRate *= 2;
+            } else {
+                bad = stepRate;
+            }
+        }
+        if (bad == 0)
+            System.out.println(String.format("Stopped the search at %.1f batches/s, which still met the SLA", good));
+        // stop once the rates are within 5% of each other
+        for (int i = 0; i < 10 && bad > 0 && bad - good > 0.05 * bad; i++) {
+            stepRate = (good + bad) / 2;
+            if (runSearchStep(stepRate, slaNanos, curve).meets(slaNanos))
+                good = stepRate;
+            else
+                bad = stepRate;
+        }
+        // the step that met the SLA and actually moved the most batches
+        StepResult best = null;
+        for (StepResult result : curve) {
+            if (result.meets(slaNanos) && (best == null || result.getBatchesPerSec() > best.getBatchesPerSec()))
+                best = result;
+        }
+        curve.sort(Comparator.comparingDouble(r -> r.targetRate));
+        System.out.println(String.format("Load vs latency, p99 target %.3fms:", slaMillis));
+        System.out.println("target batches/s, batches/s, ops/s, p50 us, p99 us, p99.9 us, uncorrected p99 us, meets SLA");
+        for (StepResult result : curve) {
+            System.out.println(String.format("%.1f, %.1f, %.1f, %d, %d, %d, %d, %b", result.targetRate,
+                    result.getBatchesPerSec(), result.getBatchesPerSec() * batchSize,
+                    result.latency.getPercentile(50) / 1000, result.latency.getPercentile(99) / 1000,
+                    result.latency.getPercentile(99.9) / 1000, result.uncorrected.getPercentile(99) / 1000,
+                    result.meets(slaNanos)));
+        }
+        if (best != null)
+            System.out.println(String.format("Max throughput under SLA: %.1f batches/s (%.1f ops/s) at target %.1f",
+                    best.getBatchesPerSec(), best.getBatchesPerSec() * batchSize, best.targetRate));
+        else
+            System.out.println(String.format("Even %.1f batches/s misses the SLA", bad));
+    }
+
+    private StepResult runSearchStep(double stepRate, long slaNanos, List<StepResult> curve)
+            throws InterruptedException, IOException {
+        StepResult result = runStep(stepRate, stepWarmupMillis, stepMillis);
+        curve.add(result);
+        System.out.println(String.format("rate %.1f: batches/s=%.1f p99=%dus %s", stepRate, result.getBatchesPerSec(),
+                result.latency.getPercentile(99) / 1000, result.meets(slaNanos) ? "ok" : "misses SLA"));
+        return result;
+    }
+
+    /**
+     * What the workers measured during one step
+     */
+    public class StepResult {
+        private final double targetRate;
+        private final long measureNanos;
+        // latency from the time batches were due and from the time they were sent
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram uncorrected = new LatencyHistogram();
+        private long batches;
+        private long failedBatches;
+        private long serverRt;
+
+        StepResult(double targetRate, long measureNanos) {
+            this.targetRate = targetRate;
+            this.measureNanos = measureNanos;
+        }
+
+        public double getBatchesPerSec() {
+            return batches * 1e9 / measureNanos;
+        }
+
+        /**
+         * Whether the corrected p99 stays under the target, no batch failed and the step came close to
+         * its target rate
+         */
+        public boolean meets(long p99Nanos) {
+            return batches > 0 && failedBatches == 0 && latency.getPercentile(99) <= p99Nanos
+                    && getBatchesPerSec() >= MIN_RATE_FRACTION * targetRate;
+        }
+
+        public void print(PrintStream out) {
+            double seconds = measureNanos / 1e9;
+            out.println(String.format("Measured %.3fs with %d workers and %d connections", seconds, nWorkers,
+                    nConnections));
+            out.println(String.format("batches=%d failed=%d batches/s=%.1f ops/s=%.1f", batches, failedBatches,
+                    batches / seconds, batches * batchSize / seconds));
+            if (targetRate > 0) {
+                out.println(String.format("target batches/s=%.1f", targetRate));
+                printLatency(out, "batch latency (corrected)", latency);
+                printLatency(out, "batch latency (uncorrected)", uncorrected);
+            } else {
+                printLatency(out, "batch latency", latency);
+            }
+            out.println(String.format("server RT mean us=%.1f", batches == 0 ? 0 : serverRt / 1000.0 / batches));
+        }
+
+        public void write(RunReport report) throws IOException {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("step", step);
+            fields.put("type", BATCH_OP.toString());
+            fields.put("target_rate", targetRate);
+            fields.put("seconds", measureNanos / 1e9);
+            fields.put("batches", batches);
+            fields.put("failed", failedBatches);
+            fields.put("batches_per_s", getBatchesPerSec());
+            fields.put("ops_per_s", getBatchesPerSec() * batchSize);
+            fields.put("server_rt_mean_us", batches == 0 ? 0 : serverRt / 1000.0 / batches);
+            report.writeSummary("step", fields, latency, targetRate > 0 ? uncorrected : null);
+        }
+
+        private void printLatency(PrintStream out, String name, LatencyHistogram h) {
+            out.println(String.format("%s us: p50=%d p99=%d p99.9=%d max=%d", name, h.getPercentile(50) / 1000,
+                    h.getPercentile(99) / 1000, h.getPercentile(99.9) / 1000, h.getMax() / 1000));
+        }
+    }
+
+    /**
+     * One connection and the key range of the client it plays
+     */
+    private class Client {
+        private final int clientId;
+        private final MbConnection connection;
+        private final ServerCmd cmd;
+        private long baseInsKey;
+        private long baseDelKey;
+        private long sentAt;
+        // time the batch was due, equal to sentAt in closed loop
+        private long intendedAt;
+        private long nextDue;
+        private boolean outstanding;
+        // only batches sent during the measured period count
+        private boolean measured;
+
+        Client(int clientId) throws IOException {
+            this.clientId = clientId;
+            this.connection = new MbConnection(host, port);
+            // after populate the client owns the keys congruent to its id, from its id up to the last row
+            baseDelKey = clientId;
+            baseInsKey = nRows - 1 - (nRows - 1 - clientId) % nConnections;
+            cmd = ServerCmd.batchOp(batchSize, iProb, dProb, uProb, clientId, nConnections, baseInsKey, baseDelKey,
+                    keyDist, distParam1, distParam2);
+        }
+
+        /**
+         * Continues from the keys of a response. Batches only ever move the key range forward, so keys
+         * behind the current ones cannot be the result of this client's batch and are ignored.
+         */
+        void advanceKeys(BatchOpResult result) {
+            if (result.getBaseInsKey() < baseInsKey || result.getBaseDelKey() < baseDelKey)
+                return;
+            baseInsKey = result.getBaseInsKey();
+            baseDelKey = result.getBaseDelKey();
+        }
+
+        void sendBatch(long intendedAt) throws IOException {
+            cmd.getBatchOp().set(batchSize, iProb, dProb, uProb, clientId, nConnections, baseInsKey, baseDelKey);
+            this.intendedAt = intendedAt;
+            sentAt = System.nanoTime();
+            outstanding = true;
+            measured = phase == MEASURE;
+            connection.send(cmd);
+        }
+    }
+
+    /**
+     * Runs the clients of a set of connections on one thread, waiting on a selector for responses
+     */
+    private class Worker implements Runnable {
+        private final int id;
+        private final int[] clientIds;
+        // latency from the time a batch was due and from the time it was actually sent
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram uncorrected = new LatencyHistogram();
+        private long batches;
+        private long failedBatches;
+        private long serverRt;
+        private volatile Throwable error;
+        // interval of the run report being filled, null before the first step
+        private RunReport.Sample sample;
+        private long nextSampleAt;
+        // step and phase batches of the interval were sent in, PAUSE if there were none
+        private int sampleStep;
+        private int samplePhase;
+
+        Worker(int id, int[] clientIds) {
+            this.id = id;
+            this.clientIds = clientIds;
+        }
+
+        // only called while the worker is paused
+        void reset() {
+            latency.reset();
+            uncorrected.reset();
+            batches = 0;
+            failedBatches = 0;
+            serverRt = 0;
+        }
+
+        @Override
+        public void run() {
+            Client[] clients = new Client[clientIds.length];
+            try (Selector selector = Selector.open()) {
+                for (int i = 0; i < clients.length; i++) {
+                    clients[i] = new Client(clientIds[i]);
+                    clients[i].connection.getChannel().register(selector, SelectionKey.OP_READ, clients[i]);
+                }
+                try {
+                    if (populate)
+                        populate(selector, clients);
+                } finally {
+                    paused.countDown();
+                }
+                while (true) {
+                    while (phase == PAUSE) {
+                        sample(System.nanoTime());
+                        Thread.sleep(1);
+                    }
+                    if (phase == DONE)
+                        break;
+                    // spread the first batches of all connections over one interval
+                    long start = System.nanoTime();
+                    for (Client client : clients)
+                        client.nextDue = start + intervalNanos * client.clientId / nConnections;
+                    while (phase == WARMUP || phase == MEASURE)
+                        runBatches(selector, clients);
+                    // let the last batches finish, nothing is outstanding during a pause
+                    while (anyOutstanding(clients))
+                        runBatches(selector, clients);
+                    paused.countDown();
+                }
+                if (sample != null)
+                    publish();
+                for (Client client : clients) {
+                    client.connection.send(new ServerCmd(DISCONNECT));
+                    client.connection.close();
+                }
+            } catch (Throwable t) {
+                error = t;
+                t.printStackTrace();
+                // do not leave the coordinator waiting
+                paused.countDown();
+            }
+        }
+
+        private void populate(Selector selector, Client[] clients) throws IOException {
+            int pending = 0;
+            for (Client client : clients) {
+                long start = nRows * client.clientId / nConnections;
+                long end = nRows * (client.clientId + 1) / nConnections;
+                client.connection.send(ServerCmd.populate(start, end));
+                pending++;
+            }
+            long sentAt = System.nanoTime();
+            Response resp = new Response();
+            while (pending > 0) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Client client = (Client) key.attachment();
+                    ByteBuffer frame;
+                    while ((frame = client.connection.pollFrame()) != null) {
+                        latency.record(System.nanoTime() - sentAt);
+                        resp.decode(POPULATE, frame);
+                        if (!resp.isSuccess())
+                            throw new IllegalStateException("Populate failed: " + resp.getErrorMsg());
+                        pending--;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        // sends a batch on every idle connection that is due and handles the responses that arrived
+        private void runBatches(Selector selector, Client[] clients) throws IOException {
+            long now = System.nanoTime();
+            long wait = 10000000;
+            long interval = intervalNanos;
+            int current = phase;
+            if (current == WARMUP || current == MEASURE) {
+                sampleStep = step;
+                samplePhase = Math.max(samplePhase, current);
+                for (Client client : clients) {
+                    if (client.outstanding)
+                        continue;
+                    if (interval == 0) {
+                        client.sendBatch(now);
+                    } else if (client.nextDue <= now) {
+                        client.sendBatch(client.nextDue);
+                        client.nextDue += interval;
+                    } else {
+                        wait = Math.min(wait, client.nextDue - now);
+                    }
+                }
+            }
+            // select only has millisecond resolution, shorter waits poll
+            if (wait >= 1000000)
+                selector.select(wait / 1000000);
+            else
+                selector.selectNow();
+            for (SelectionKey key : selector.selectedKeys()) {
+                Client client = (Client) key.attachment();
+                ByteBuffer frame;
+                while ((frame = client.connection.pollFrame()) != null) {
+                    long received = System.nanoTime();
+                    Response resp = client.cmd.getResponse();
+                    resp.decode(BATCH_OP, frame);
+                    client.outstanding = false;
+                    client.advanceKeys(resp.getBatchOp());
+                    if (sample != null) {
+                        sample.record(received - client.intendedAt, resp.getResponseTime(), resp.isSuccess(),
+                                resp.isSuccess() ? null : resp.getErrorMsg());
+                    }
+                    if (client.measured) {
+                        latency.record(received - client.intendedAt);
+                        uncorrected.record(received - client.sentAt);
+                        batches++;
+                        serverRt += resp.getResponseTime();
+                        if (!resp.isSuccess())
+                            failedBatches++;
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+            sample(System.nanoTime());
+        }
+
+        // starts the first interval and hands over the current one once it is over
+        private void sample(long now) throws IOException {
+            if (report == null || runStart == 0)
+                return;
+            if (sample != null && now < nextSampleAt)
+                return;
+            if (sample != null)
+                publish();
+            long index = (now - runStart) / reportIntervalNanos;
+            sample = new RunReport.Sample(index);
+            samplePhase = PAUSE;
+            nextSampleAt = runStart + (index + 1) * reportIntervalNanos;
+        }
+
+        private void publish() throws IOException {
+            sample.setPhase(sampleStep, PHASE_NAMES[samplePhase]);
+            report.add(id, sample);
+            sample = null;
+        }
+
+        private boolean anyOutstanding(Client[] clients) {
+            for (Client client : clients) {
+                if (client.outstanding)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,15 +1,16 @@
 package ch.ethz.mbench.client;
 
+import ch.ethz.mbench.server.KeyChooser;
+import ch.ethz.mbench.server.Response;
 import ch.ethz.mbench.server.ServerCmd;
 
+import org.apache.commons.cli.*;
+
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
 
 import static ch.ethz.mbench.server.ServerCmd.ServerCmdType.*;
@@ -21,34 +22,54 @@ public class MbClient {
 
     public static void main(String[] args) throws IOException,
             InterruptedException {
-        int port = 8713;
-        SocketChannel channel = SocketChannel.open();
-        Queue<ServerCmd> cmdQueue = new LinkedList<>();
-
-        // non blocking mode
-        channel.configureBlocking(false);
-        channel.connect(new InetSocketAddress("127.0.0.1", port));
-
-        while (!channel.finishConnect()) {
-            System.out.print(".");
+        Options options = getCmdLineOptions();
+        CommandLine commandLine = null;
+        try {
+            commandLine = new DefaultParser().parse(options, args);
+        } catch (ParseException exception) {
+            System.out.print("Parse error: ");
+            new HelpFormatter().printHelp("mbench-client", options);
+            System.exit(0);
         }
+        if (commandLine.hasOption("h")) {
+            new HelpFormatter().printHelp("mbench-client", options);
+            System.exit(0);
+        }
+        if (commandLine.hasOption("w")) {
+            new LoadGenerator(commandLine).run();
+            return;
+        }
+        String host = commandLine.getOptionValue("H", "127.0.0.1");
+        int port = Integer.parseInt(commandLine.getOptionValue("p", "8713"));
+        int pipelineDepth = Integer.parseInt(commandLine.getOptionValue("pd", "0"));
+        MbConnection connection = new MbConnection(host, port);
+        Queue<ServerCmd> cmdQueue = new LinkedList<>();
 
-        cmdQueue.add(new ServerCmd(CREATE_SCHEMA, new Object[]{CREATE_SCHEMA.getVal(), 3}));
-        cmdQueue.add(new ServerCmd(POPULATE, new Object[]{POPULATE.getVal(), 0L, 10L}));
-        cmdQueue.add(new ServerCmd(BATCH_OP, new Object[]{BATCH_OP.getVal(), 10, 0.4, 0.3, 0.3, 1, 1L, 10L, 0L}));
-        cmdQueue.add(new ServerCmd(Q1, new Object[]{Q1.getVal()}));
-//        cmdQueue.add(new ServerCmd(DISCONNECT, new Object[]{}));
+        cmdQueue.add(ServerCmd.createSchema(3));
+        cmdQueue.add(ServerCmd.populate(0L, 10L));
+        byte keyDist = KeyChooser.fromName(commandLine.getOptionValue("kd", "uniform"));
+        double distParam1 = Double.parseDouble(commandLine.getOptionValue("kp1", "0"));
+        double distParam2 = Double.parseDouble(commandLine.getOptionValue("kp2", "0"));
+        cmdQueue.add(ServerCmd.batchOp(10, 0.4, 0.3, 0.3, 1, 1L, 10L, 0L, keyDist, distParam1, distParam2));
+        cmdQueue.add(new ServerCmd(Q1));
+        cmdQueue.add(new ServerCmd(LATENCY));
+        cmdQueue.add(new ServerCmd(STATS));
+//        cmdQueue.add(new ServerCmd(DISCONNECT));
 
         while (!cmdQueue.isEmpty()) {
             ServerCmd cmd = cmdQueue.poll();
-            ByteBuffer byteBuffer = ServerCmd.encodeServerCmd(cmd);
-
-            // send command
-            while (byteBuffer.hasRemaining()) {
-                channel.write(byteBuffer);
+            if (pipelineDepth > 0 && cmd.getType() == BATCH_OP) {
+                if (!pipeline(cmd, pipelineDepth, connection)) {
+                    System.out.println("Error processing command " + cmd.getType().toString());
+                    System.exit(1);
+                }
+                System.out.println(cmd.getType().toString() + " x" + pipelineDepth + " successfully executed!");
+                continue;
             }
+            // send command
+            connection.send(cmd);
             // wait for response
-            if (!waitResponse(cmd, channel)) {
+            if (!readResponse(cmd, connection.awaitFrame())) {
                 System.out.println("Error processing command " + cmd.getType().toString());
                 System.exit(1);
             } else {
@@ -56,58 +77,99 @@ public class MbClient {
             }
 
         }
+        connection.close();
     }
 
-    private static boolean waitResponse(ServerCmd cmd, SocketChannel channel) throws IOException {
-        boolean result = false;
-        boolean read = false;
-        while (true) {
-            // see if any message has been received
-            ByteBuffer bufferA = ByteBuffer.allocate(ServerCmd.CMD_SIZE);
-            bufferA.clear();
-            bufferA.order(ByteOrder.nativeOrder());
-            int count = 0;
-            int strSz = 0;
-            byte byteStr[];
-            while ((count = channel.read(bufferA)) > 0) {
-                // flip the buffer to start reading
-                bufferA.flip();
-                System.out.println("\tServer response size:" + bufferA.getLong());
-                System.out.println("\tBytes read from server:" + count);
-                result = bufferA.get() == 1 ? true : false;
-                switch (cmd.getType()) {
-                    case CREATE_SCHEMA:
-                        break;
-                    case POPULATE:
-                    case BATCH_OP:
-                    case Q1:
-                        strSz = bufferA.getInt();
-                        byteStr = new byte[strSz];
-                        bufferA.get(byteStr, 0, strSz);
-                        System.out.println("\t" + new String(byteStr, StandardCharsets.UTF_8));
-                        System.out.println(String.format("\tRT=%.6f", bufferA.getLong()/1000000.0));
-                        break;
-                    case Q2:
-                        break;
-                    case Q3:
-                        break;
-                    case DISCONNECT:
-                        break;
-                }
-                read = true;
-            }
+    /**
+     * Sends the same command several times without waiting and matches the responses by request id
+     */
+    private static boolean pipeline(ServerCmd cmd, int depth, MbConnection connection) throws IOException {
+        Map<Long, ServerCmd> inFlight = new HashMap<>();
+        for (int i = 0; i < depth; i++) {
+            ServerCmd pipelined = cmd.copy();
+            pipelined.setRequestId(connection.nextRequestId());
+            inFlight.put(pipelined.getRequestId(), pipelined);
+            connection.send(pipelined);
+        }
+        boolean result = true;
+        while (!inFlight.isEmpty()) {
+            ByteBuffer frame = connection.awaitFrame();
+            long requestId = frame.getLong();
+            ServerCmd sent = inFlight.remove(requestId);
+            if (sent == null)
+                throw new IllegalStateException("Response for unknown request " + requestId);
+            System.out.println("\tResponse for request " + requestId);
+            result &= readResponse(sent, frame);
+        }
+        return result;
+    }
 
-            if (read)
+    private static boolean readResponse(ServerCmd cmd, ByteBuffer bufferA) {
+        System.out.println("\tServer response bytes:" + bufferA.remaining());
+        Response resp = cmd.getResponse();
+        resp.decode(cmd.getType(), bufferA);
+        switch (cmd.getType()) {
+            case CREATE_SCHEMA:
+                break;
+            case BATCH_OP:
+                System.out.println("\t" + resp.getErrorMsg());
+                System.out.println(String.format("\tRT=%.6f", resp.getResponseTime()/1000000.0));
+                System.out.println("\tbaseInsKey=" + resp.getBatchOp().getBaseInsKey()
+                        + " baseDelKey=" + resp.getBatchOp().getBaseDelKey());
+                break;
+            case POPULATE:
+                System.out.println("\t" + resp.getErrorMsg());
+                System.out.println(String.format("\tRT=%.6f", resp.getResponseTime()/1000000.0));
+                System.out.println(String.format("\trows=%d rows/s=%.1f shards=%d", resp.getPopulate().getSucRows(),
+                        resp.getPopulate().getRowsPerSec(), resp.getPopulate().getNumShards()));
+                for (int i = 0; i < resp.getPopulate().getNumShards(); i++)
+                    System.out.println(String.format("\t\tshard %d RT=%.6f", i, resp.getPopulate().getShardTime(i)/1000000.0));
+                break;
+            case Q1:
+            case Q2:
+            case Q3:
+                System.out.println("\t" + resp.getErrorMsg());
+                System.out.println(String.format("\tRT=%.6f", resp.getResponseTime()/1000000.0));
+                break;
+            case LATENCY:
+                System.out.print(resp.getLatency().toString().replaceAll("(?m)^", "\t"));
+                break;
+            case STATS:
+                System.out.print(resp.getStats().toString().replaceAll("(?m)^", "\t"));
+                break;
+            case DISCONNECT:
                 break;
-//            if (message.length() > 0) {
-//                System.out.println(message);
-//                buffer = ServerCmd.encodeCmd(ServerCmd.ServerCmdType.DISCONNECT, null);
-//                while (buffer.hasRemaining()) {
-//                    channel.write(buffer);
-//                }
-//                break;
-//            }
         }
-        return result;
+        return resp.isSuccess();
+    }
+
+    public static Options getCmdLineOptions() {
+        Options options = new Options();
+        options.addOption(Option.builder("h").argName("help").desc("Show help message").build());
+        options.addOption(Option.builder("H").argName("host").hasArg().desc("Server host").build());
+        options.addOption(Option.builder("p").argName("port").hasArg().desc("Server port").build());
+        options.addOption(Option.builder("kd").argName("key-distribution").hasArg().desc("Key access distribution: uniform, zipfian, hotspot or latest").build());
+        options.addOption(Option.builder("kp1").argName("key-param1").hasArg().desc("Zipfian constant, or hot set fraction for hotspot").build());
+        options.addOption(Option.builder("kp2").argName("key-param2").hasArg().desc("Hot operation fraction for hotspot").build());
+        options.addOption(Option.builder("pd").argName("pipeline-depth").hasArg().desc("Number of pipelined batch operations").build());
+        // load generator mode
+        options.addOption(Option.builder("w").argName("workers").hasArg().desc("Run as load generator with this many worker threads").build());
+        options.addOption(Option.builder("c").argName("connections").hasArg().desc("Connections of the load generator, one client each").build());
+        options.addOption(Option.builder("s").argName("scaling-factor").hasArg().desc("Million rows to populate").build());
+        options.addOption(Option.builder("np").argName("no-populate").desc("Skip creating and populating the table").build());
+        options.addOption(Option.builder("bo").argName("batch-ops").hasArg().desc("Operations per batch").build());
+        options.addOption(Option.builder("ip").argName("insert-prob").hasArg().desc("Probability of an insert").build());
+        options.addOption(Option.builder("dp").argName("delete-prob").hasArg().desc("Probability of a delete").build());
+        options.addOption(Option.builder("up").argName("update-prob").hasArg().desc("Probability of an update").build());
+        options.addOption(Option.builder("wu").argName("warmup").hasArg().desc("Warmup seconds").build());
+        options.addOption(Option.builder("d").argName("duration").hasArg().desc("Measured seconds").build());
+        options.addOption(Option.builder("sla").argName("p99-millis").hasArg().desc("Search the highest rate whose p99 stays under this many milliseconds").build());
+        options.addOption(Option.builder("sr").argName("search-start").hasArg().desc("First rate tried by the SLA search, in batches per second").build());
+        options.addOption(Option.builder("sw").argName("step-warmup").hasArg().desc("Warmup seconds of every SLA search step").build());
+        options.addOption(Option.builder("sd").argName("step-duration").hasArg().desc("Measured seconds of every SLA search step").build());
+        options.addOption(Option.builder("r").argName("rate").hasArg().desc("Target batches per second over all connections, open loop; 0 runs closed loop").build());
+        options.addOption(Option.builder("o").argName("report-prefix").hasArg().desc("Write the run report to <prefix>.csv and <prefix>.ndjson").build());
+        options.addOption(Option.builder("ri").argName("report-interval").hasArg().desc("Seconds covered by every line of the run report").build());
+        return options;
     }
 }
@@ -0,0 +1,124 @@
+package ch.ethz.mbench.client;
+
+import ch.ethz.mbench.server.BufferPool;
+import ch.ethz.mbench.server.ServerCmd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client side of a connection to the mbench server, takes care of the response framing
+ */
+public class MbConnection {
+
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private final SocketChannel channel;
+    // received bytes are in [readPos, dataEnd), everything before readPos has been returned already
+    private ByteBuffer readBuffer;
+    private int readPos;
+    private int dataEnd;
+    private long nextRequestId;
+
+    public MbConnection(String host, int port) throws IOException {
+        channel = SocketChannel.open();
+        // non blocking mode
+        channel.configureBlocking(false);
+        channel.connect(new InetSocketAddress(host, port));
+        while (!channel.finishConnect()) {
+            System.out.print(".");
+        }
+        readBuffer = BufferPool.SHARED.acquire(ServerCmd.CMD_SIZE);
+    }
+
+    public long nextRequestId() {
+        return nextRequestId++;
+    }
+
+    public void send(ServerCmd cmd) throws IOException {
+        ByteBuffer byteBuffer = ServerCmd.encodeServerCmd(cmd);
+        try {
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+        } finally {
+            BufferPool.SHARED.release(byteBuffer);
+        }
+    }
+
+    /**
+     * Returns the next complete response frame positioned right after the size header, or null
+     * if none has been received yet. The frame is only valid until the next call.
+     */
+    public ByteBuffer pollFrame() throws IOException {
+        readBuffer.limit(readBuffer.capacity()).position(dataEnd);
+        ByteBuffer frame = nextFrame();
+        if (frame != null)
+            return frame;
+        if (!readBuffer.hasRemaining())
+            makeRoom();
+        if (channel.read(readBuffer) < 0)
+            throw new IOException("Connection closed by server");
+        dataEnd = readBuffer.position();
+        return nextFrame();
+    }
+
+    /**
+     * Spins until the next response frame has been received
+     */
+    public ByteBuffer awaitFrame() throws IOException {
+        ByteBuffer frame;
+        while ((frame = pollFrame()) == null) ;
+        return frame;
+    }
+
+    private ByteBuffer nextFrame() {
+        if (dataEnd - readPos < FRAME_HEADER_SIZE)
+            return null;
+        long frameSize = readBuffer.getLong(readPos);
+        if (frameSize < FRAME_HEADER_SIZE || frameSize > ServerCmd.MAX_CMD_SIZE)
+            throw new IllegalStateException("Invalid response size " + frameSize);
+        if (dataEnd - readPos < frameSize)
+            return null;
+        int frameStart = readPos;
+        readPos += (int) frameSize;
+        if (readPos == dataEnd) {
+            // everything is consumed, next read can start from the beginning
+            readPos = 0;
+            dataEnd = 0;
+        }
+        readBuffer.limit(frameStart + (int) frameSize).position(frameStart + FRAME_HEADER_SIZE);
+        return readBuffer;
+    }
+
+    private void makeRoom() {
+        int pending = dataEnd - readPos;
+        int needed = pending >= FRAME_HEADER_SIZE ? (int) readBuffer.getLong(readPos) : FRAME_HEADER_SIZE;
+        if (readPos > 0) {
+            // move the partial frame to the front
+            readBuffer.limit(dataEnd).position(readPos);
+            readBuffer.compact();
+            readPos = 0;
+            dataEnd = pending;
+        }
+        if (readBuffer.capacity() < needed) {
+            ByteBuffer grown = BufferPool.SHARED.acquire(Math.max(needed, 2 * readBuffer.capacity()));
+            readBuffer.flip();
+            grown.put(readBuffer);
+            BufferPool.SHARED.release(readBuffer);
+            readBuffer = grown;
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        BufferPool.SHARED.release(readBuffer);
+        readBuffer = null;
+    }
+}
@@ -0,0 +1,270 @@
+package ch.ethz.mbench.client;
+
+import ch.ethz.mbench.server.LatencyHistogram;
+import ch.ethz.mbench.server.LatencyResult;
+import ch.ethz.mbench.server.LatencyStats;
+import ch.ethz.mbench.server.PhaseStats;
+import ch.ethz.mbench.server.ServerCmd;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Structured output of a load generator run, written while the run progresses.
+ * prefix.csv holds one line per reporting interval; prefix.ndjson holds one JSON object per line
+ * for the configuration, every interval, every step and the server side latencies.
+ * Every line is flushed right away so that a run can be followed live.
+ */
+public class RunReport implements Closeable {
+
+    private static final String CSV_HEADER = "elapsed_s,step,phase,type,batches,batches_per_s,ops_per_s,failed,"
+            + "p50_us,p99_us,p999_us,max_us,server_rt_mean_us,errors";
+
+    private final Writer csv;
+    private final Writer json;
+    private final long intervalNanos;
+    private final int batchSize;
+    // intervals some worker still has to report, by index
+    private final TreeMap<Long, Sample> open = new TreeMap<>();
+    private final long[] lastIndex;
+
+    public RunReport(String prefix, int nWorkers, long intervalNanos, int batchSize) throws IOException {
+        this.csv = new BufferedWriter(new FileWriter(prefix + ".csv"));
+        this.json = new BufferedWriter(new FileWriter(prefix + ".ndjson"));
+        this.intervalNanos = intervalNanos;
+        this.batchSize = batchSize;
+        this.lastIndex = new long[nWorkers];
+        Arrays.fill(lastIndex, -1);
+        csv.write(CSV_HEADER + "\n");
+        csv.flush();
+    }
+
+    /**
+     * What a worker measured during one reporting interval
+     */
+    public static class Sample {
+        private long index;
+        private int step;
+        private String phase;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long batches;
+        private long failed;
+        private long serverRt;
+        // failed responses by error message, cut at the first '=' so that messages carrying values add up
+        private final Map<String, Long> errors = new HashMap<>();
+
+        public Sample(long index) {
+            this.index = index;
+        }
+
+        public void record(long latencyNanos, long serverRtNanos, boolean success, String errorMsg) {
+            latency.record(latencyNanos);
+            batches++;
+            serverRt += serverRtNanos;
+            if (!success) {
+                failed++;
+                errors.merge(normalizeError(errorMsg), 1L, Long::sum);
+            }
+        }
+
+        /**
+         * Labels the interval with the step and phase a worker ended it in
+         */
+        public void setPhase(int step, String phase) {
+            this.step = step;
+            this.phase = phase;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        private void add(Sample other) {
+            latency.add(other.latency);
+            batches += other.batches;
+            failed += other.failed;
+            serverRt += other.serverRt;
+            // an interval spanning a step boundary is labelled with the later step
+            if (other.step > step) {
+                step = other.step;
+                phase = other.phase;
+            }
+            for (Map.Entry<String, Long> e : other.errors.entrySet())
+                errors.merge(e.getKey(), e.getValue(), Long::sum);
+        }
+    }
+
+    static String normalizeError(String errorMsg) {
+        if (errorMsg == null || errorMsg.isEmpty())
+            return "unknown";
+        int eq = errorMsg.indexOf('=');
+        return eq > 0 ? errorMsg.substring(0, eq) : errorMsg;
+    }
+
+    public synchronized void writeConfig(Map<String, Object> config) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("record", "config");
+        record.putAll(config);
+        writeJson(record);
+    }
+
+    /**
+     * Adds the sample of a worker, intervals every worker has moved past are written out
+     */
+    public synchronized void add(int worker, Sample sample) throws IOException {
+        Sample merged = open.get(sample.index);
+        if (merged == null)
+            open.put(sample.index, sample);
+        else
+            merged.add(sample);
+        lastIndex[worker] = Math.max(lastIndex[worker], sample.index);
+        long complete = Long.MAX_VALUE;
+        for (long index : lastIndex)
+            complete = Math.min(complete, index);
+        while (!open.isEmpty() && open.firstKey() <= complete)
+            writeInterval(open.pollFirstEntry().getValue());
+    }
+
+    private void writeInterval(Sample s) throws IOException {
+        double seconds = intervalNanos / 1e9;
+        LatencyHistogram h = s.latency;
+        String errors = s.errors.isEmpty() ? "" : s.errors.toString().replace(',', ';');
+        csv.write(String.format(Locale.ROOT, "%.3f,%d,%s,%s,%d,%.1f,%.1f,%d,%d,%d,%d,%d,%.1f,\"%s\"\n",
+                (s.index + 1) * seconds, s.step, s.phase, ServerCmd.ServerCmdType.BATCH_OP, s.batches,
+                s.batches / seconds, s.batches * batchSize / seconds, s.failed, h.getPercentile(50) / 1000,
+                h.getPercentile(99) / 1000, h.getPercentile(99.9) / 1000, h.getMax() / 1000,
+                s.batches == 0 ? 0 : s.serverRt / 1000.0 / s.batches, errors));
+        csv.flush();
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("record", "interval");
+        record.put("elapsed_s", (s.index + 1) * seconds);
+        record.put("step", s.step);
+        record.put("phase", s.phase);
+        record.put("type", ServerCmd.ServerCmdType.BATCH_OP.toString());
+        record.put("batches", s.batches);
+        record.put("batches_per_s", s.batches / seconds);
+        record.put("ops_per_s", s.batches * batchSize / seconds);
+        record.put("failed", s.failed);
+        record.put("latency_us", percentiles(h));
+        record.put("server_rt_mean_us", s.batches == 0 ? 0 : s.serverRt / 1000.0 / s.batches);
+        record.put("errors", new LinkedHashMap<String, Object>(s.errors));
+        writeJson(record);
+    }
+
+    /**
+     * Writes the summary of a step, or of a single command type like POPULATE
+     */
+    public synchronized void writeSummary(String record, Map<String, Object> fields, LatencyHistogram corrected,
+                                          LatencyHistogram uncorrected) throws IOException {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("record", record);
+        out.putAll(fields);
+        out.put("latency_us", percentiles(corrected));
+        if (uncorrected != null)
+            out.put("uncorrected_latency_us", percentiles(uncorrected));
+        writeJson(out);
+    }
+
+    public synchronized void writeServerLatency(LatencyResult latency) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("record", "server_latency");
+        Map<String, Object> ops = new LinkedHashMap<>();
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++) {
+            if (latency.getCount(op) == 0)
+                continue;
+            ops.put(LatencyStats.getName(op), percentiles(latency.getCount(op), latency.getP50(op),
+                    latency.getP99(op), latency.getP999(op), latency.getMax(op)));
+        }
+        record.put("operations", ops);
+        Map<String, Object> types = new LinkedHashMap<>();
+        for (ServerCmd.ServerCmdType type : ServerCmd.ServerCmdType.values()) {
+            if (latency.getPhaseCount(type) == 0)
+                continue;
+            Map<String, Object> phases = new LinkedHashMap<>();
+            for (int phase = 0; phase < PhaseStats.NUM_PHASES; phase++) {
+                phases.put(PhaseStats.getName(phase), percentiles(latency.getPhaseCount(type),
+                        latency.getPhaseP50(type, phase), latency.getPhaseP99(type, phase),
+                        latency.getPhaseP999(type, phase), latency.getPhaseMax(type, phase)));
+            }
+            types.put(type.toString(), phases);
+        }
+        record.put("phases", types);
+        writeJson(record);
+    }
+
+    private static Map<String, Object> percentiles(LatencyHistogram h) {
+        return percentiles(h.getCount(), h.getPercentile(50), h.getPercentile(99), h.getPercentile(99.9), h.getMax());
+    }
+
+    private static Map<String, Object> percentiles(long count, long p50, long p99, long p999, long max) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("count", count);
+        m.put("p50", p50 / 1000);
+        m.put("p99", p99 / 1000);
+        m.put("p99.9", p999 / 1000);
+        m.put("max", max / 1000);
+        return m;
+    }
+
+    private void writeJson(Map<String, Object> record) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        appendJson(sb, record);
+        json.write(sb.append('\n').toString());
+        json.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendJson(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                appendJson(sb, e.getKey());
+                sb.append(':');
+                appendJson(sb, e.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            sb.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.format(Locale.ROOT, "%.3f", d));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            sb.append('"');
+            for (char c : value.toString().toCharArray()) {
+                if (c == '"' || c == '\\')
+                    sb.append('\\').append(c);
+                else if (c < 0x20)
+                    sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                else
+                    sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+
+    /**
+     * Writes the intervals not complete yet and closes the files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        while (!open.isEmpty())
+            writeInterval(open.pollFirstEntry().getValue());
+        csv.close();
+        json.close();
+    }
+}
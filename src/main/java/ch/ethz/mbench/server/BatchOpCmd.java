@@ -0,0 +1,132 @@
+package ch.ethz.mbench.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Arguments of a BATCH_OP command, decoded in place and reused across requests
+ */
+public class BatchOpCmd {
+
+    // nOps + 3 probabilities + clientId + nClients + 2 base keys
+    private static final int BASE_SIZE = 4 + 3 * 8 + 4 + 3 * 8;
+    // key distribution and its two parameters, optional on the wire
+    private static final int KEY_DIST_SIZE = 1 + 2 * 8;
+    public static final int ENCODED_SIZE = BASE_SIZE + KEY_DIST_SIZE;
+
+    private int nOps;
+    private double iProb;
+    private double dProb;
+    private double uProb;
+    private int clientId;
+    private long nClients;
+    private long baseInsKey;
+    private long baseDelKey;
+    private byte keyDist = KeyChooser.UNIFORM;
+    private double distParam1;
+    private double distParam2;
+
+    public void set(int nOps, double iProb, double dProb, double uProb, int clientId, long nClients,
+                    long baseInsKey, long baseDelKey) {
+        this.nOps = nOps;
+        this.iProb = iProb;
+        this.dProb = dProb;
+        this.uProb = uProb;
+        this.clientId = clientId;
+        this.nClients = nClients;
+        this.baseInsKey = baseInsKey;
+        this.baseDelKey = baseDelKey;
+    }
+
+    public void setKeyDist(byte keyDist, double distParam1, double distParam2) {
+        this.keyDist = keyDist;
+        this.distParam1 = distParam1;
+        this.distParam2 = distParam2;
+    }
+
+    public void copyFrom(BatchOpCmd other) {
+        set(other.nOps, other.iProb, other.dProb, other.uProb, other.clientId, other.nClients,
+                other.baseInsKey, other.baseDelKey);
+        setKeyDist(other.keyDist, other.distParam1, other.distParam2);
+    }
+
+    public void decode(ByteBuffer bb) {
+        nOps = bb.getInt();
+        iProb = bb.getDouble();
+        dProb = bb.getDouble();
+        uProb = bb.getDouble();
+        clientId = bb.getInt();
+        nClients = bb.getLong();
+        baseInsKey = bb.getLong();
+        baseDelKey = bb.getLong();
+        // older clients do not send a key distribution
+        if (bb.remaining() >= KEY_DIST_SIZE) {
+            keyDist = bb.get();
+            distParam1 = bb.getDouble();
+            distParam2 = bb.getDouble();
+        } else {
+            setKeyDist(KeyChooser.UNIFORM, 0, 0);
+        }
+    }
+
+    public void encode(ByteBuffer bb) {
+        bb.putInt(nOps);
+        bb.putDouble(iProb);
+        bb.putDouble(dProb);
+        bb.putDouble(uProb);
+        bb.putInt(clientId);
+        bb.putLong(nClients);
+        bb.putLong(baseInsKey);
+        bb.putLong(baseDelKey);
+        bb.put(keyDist);
+        bb.putDouble(distParam1);
+        bb.putDouble(distParam2);
+    }
+
+    public int getEncodedSize() {
+        return ENCODED_SIZE;
+    }
+
+    public int getNOps() {
+        return nOps;
+    }
+
+    public double getIProb() {
+        return iProb;
+    }
+
+    public double getDProb() {
+        return dProb;
+    }
+
+    public double getUProb() {
+        return uProb;
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    public long getNClients() {
+        return nClients;
+    }
+
+    public long getBaseInsKey() {
+        return baseInsKey;
+    }
+
+    public long getBaseDelKey() {
+        return baseDelKey;
+    }
+
+    public byte getKeyDist() {
+        return keyDist;
+    }
+
+    public double getDistParam1() {
+        return distParam1;
+    }
+
+    public double getDistParam2() {
+        return distParam2;
+    }
+}
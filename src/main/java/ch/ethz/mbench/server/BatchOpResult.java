@@ -0,0 +1,43 @@
+package ch.ethz.mbench.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Key range a client continues from after a BATCH_OP, reused across requests.
+ * A batch that ran returns the keys it advanced to, even if some of its operations failed; a batch
+ * that failed before running returns the keys it was sent.
+ */
+public class BatchOpResult {
+
+    public static final int ENCODED_SIZE = 2 * 8;
+
+    private long baseInsKey;
+    private long baseDelKey;
+
+    public void set(long baseInsKey, long baseDelKey) {
+        this.baseInsKey = baseInsKey;
+        this.baseDelKey = baseDelKey;
+    }
+
+    public void decode(ByteBuffer bb) {
+        baseInsKey = bb.getLong();
+        baseDelKey = bb.getLong();
+    }
+
+    public void encode(ByteBuffer bb) {
+        bb.putLong(baseInsKey);
+        bb.putLong(baseDelKey);
+    }
+
+    public int getEncodedSize() {
+        return ENCODED_SIZE;
+    }
+
+    public long getBaseInsKey() {
+        return baseInsKey;
+    }
+
+    public long getBaseDelKey() {
+        return baseDelKey;
+    }
+}
@@ -0,0 +1,118 @@
+package ch.ethz.mbench.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of direct buffers shared by client sessions and the client codec.
+ * Size classes are powers of two between the minimum and the maximum buffer size,
+ * larger requests are served with unpooled buffers.
+ */
+public class BufferPool {
+
+    public static final BufferPool SHARED = new BufferPool(ServerCmd.CMD_SIZE, ServerCmd.MAX_CMD_SIZE, 1024);
+
+    private final int minShift;
+    private final int maxSize;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong checkedOut = new AtomicLong();
+    private final AtomicLong highWaterMark = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    public BufferPool(int minSize, int maxSize, int maxPooledPerClass) {
+        this.minShift = 32 - Integer.numberOfLeadingZeros(minSize - 1);
+        this.maxSize = maxSize;
+        int maxShift = 32 - Integer.numberOfLeadingZeros(maxSize - 1);
+        sizeClasses = new SizeClass[maxShift - minShift + 1];
+        for (int i = 0; i < sizeClasses.length; i++)
+            sizeClasses[i] = new SizeClass(1 << (minShift + i), maxPooledPerClass);
+    }
+
+    /**
+     * Returns a cleared direct buffer in native byte order with at least the given capacity
+     */
+    public ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        if (size > maxSize) {
+            buffer = allocate(size);
+        } else {
+            SizeClass sizeClass = sizeClasses[classIndex(size)];
+            buffer = sizeClass.pop();
+            if (buffer == null)
+                buffer = allocate(sizeClass.bufferSize);
+        }
+        long out = checkedOut.incrementAndGet();
+        long high;
+        while (out > (high = highWaterMark.get()) && !highWaterMark.compareAndSet(high, out)) ;
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer obtained from acquire back to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        checkedOut.decrementAndGet();
+        int capacity = buffer.capacity();
+        if (capacity > maxSize || Integer.bitCount(capacity) != 1)
+            return;
+        buffer.clear();
+        sizeClasses[classIndex(capacity)].push(buffer);
+    }
+
+    public long getCheckedOut() {
+        return checkedOut.get();
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    private int classIndex(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, shift - minShift);
+    }
+
+    private ByteBuffer allocate(int size) {
+        allocated.incrementAndGet();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "checkedOut=" + checkedOut.get() + ", highWaterMark=" + highWaterMark.get() + ", allocated=" + allocated.get();
+    }
+
+    // bounded stack of free buffers of the same capacity
+    private static class SizeClass {
+        private final int bufferSize;
+        private final ByteBuffer[] free;
+        private int size;
+
+        SizeClass(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.free = new ByteBuffer[maxPooled];
+        }
+
+        synchronized ByteBuffer pop() {
+            if (size == 0)
+                return null;
+            ByteBuffer buffer = free[--size];
+            free[size] = null;
+            return buffer;
+        }
+
+        synchronized void push(ByteBuffer buffer) {
+            if (size < free.length)
+                free[size++] = buffer;
+        }
+    }
+}
@@ -2,9 +2,10 @@ package ch.ethz.mbench.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * Contains information needed to manage client connections to server
@@ -12,86 +13,247 @@ import java.nio.channels.SocketChannel;
 public class ClientSession {
 
     private ByteBuffer readBuffer;
-    private ByteBuffer writeBuffer;
     private SelectionKey selectionKey;
     private SocketChannel channel;
     private long clientId;
+    private Reactor reactor;
+    // start of the first frame not yet decoded, readBuffer is kept in write mode
+    private int readPos;
+    private boolean closed;
+    // decoded commands not dispatched yet and number of dispatched ones without response
+    private final Deque<ServerCmd> pendingCmds = new ArrayDeque<>();
+    private final int maxInFlight;
+    private volatile int inFlight;
+    private boolean serialInFlight;
+    // traffic counters, only written by the reactor thread and read by STATS
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    // operation counts and time of the session's previous STATS request, only used by the stats thread
+    private final long[] lastStatsCounts = new long[LatencyStats.NUM_OPS];
+    private long lastStatsTime;
+    // command objects (and their responses) ready to be reused
+    private final Deque<ServerCmd> freeCmds = new ArrayDeque<>();
+    // serialized responses the socket has not taken yet
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long outboundBytes;
 
-    public ClientSession(SelectionKey readKey, SocketChannel acceptedChannel, long cId) {
+    private static final long MAX_OUTBOUND_BYTES = 1 << 20;
+
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    public ClientSession(SelectionKey readKey, SocketChannel acceptedChannel, long cId, Reactor reactor, int maxInFlight) {
         this.selectionKey = readKey;
+        this.reactor = reactor;
+        this.maxInFlight = maxInFlight;
         this.channel = acceptedChannel;
         this.clientId = cId;
-        readBuffer = ByteBuffer.allocate(ServerCmd.CMD_SIZE);
-        readBuffer.order(ByteOrder.nativeOrder());
-        writeBuffer = ByteBuffer.allocate(ServerCmd.CMD_SIZE);
-        writeBuffer.order(ByteOrder.nativeOrder());
+        readBuffer = BufferPool.SHARED.acquire(ServerCmd.CMD_SIZE);
     }
 
     public void disconnect() {
-        MbServer.clientMap.remove(selectionKey);
-        MbServer.clientIds --;
+        if (closed) return;
+        closed = true;
+        reactor.remove(selectionKey);
+        MbServer.numClients.decrementAndGet();
+        // give the buffers back, nothing reads or writes them once closed
+        BufferPool.SHARED.release(readBuffer);
+        readBuffer = null;
+        ByteBuffer pendingWrite;
+        while ((pendingWrite = outbound.poll()) != null)
+            BufferPool.SHARED.release(pendingWrite);
+        outboundBytes = 0;
         try {
             if (selectionKey != null) selectionKey.cancel();
             if (channel == null) return;
-            System.out.println("Disconnecting client");
             channel.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the next complete command sent by the client, reading from the channel
+     * only when the buffered bytes do not contain a whole frame. Returns null once
+     * no complete command is available without blocking.
+     */
     public ServerCmd readCmd() {
-        int bytesRead = -1;
-        getReadBuffer().clear();
+        while (!closed) {
+            ServerCmd serverCmd = decodeNext();
+            if (serverCmd != null || closed)
+                return serverCmd;
+            if (!fillReadBuffer())
+                return null;
+        }
+        return null;
+    }
+
+    // decodes a frame starting at readPos if it has been completely received
+    private ServerCmd decodeNext() {
+        int end = readBuffer.position();
+        if (end - readPos < FRAME_HEADER_SIZE)
+            return null;
+        long frameSize = readBuffer.getLong(readPos);
+        if (frameSize < ServerCmd.MIN_CMD_SIZE || frameSize > ServerCmd.MAX_CMD_SIZE) {
+            MbServer.Log.error("Invalid frame size " + frameSize + " from client " + clientId);
+            disconnect();
+            return null;
+        }
+        if (end - readPos < frameSize)
+            return null;
+        ServerCmd serverCmd = acquireCmd();
+        try {
+            readBuffer.limit(readPos + (int) frameSize).position(readPos);
+            serverCmd.decode(readBuffer);
+        } catch (RuntimeException e) {
+            MbServer.Log.error("Malformed command from client " + clientId, e);
+            freeCmds.push(serverCmd);
+            serverCmd = null;
+        }
+        readBuffer.limit(readBuffer.capacity()).position(end);
+        if (serverCmd == null) {
+            disconnect();
+            return null;
+        }
+        readPos += (int) frameSize;
+        if (readPos == end) {
+            readBuffer.clear();
+            readPos = 0;
+        }
+        return serverCmd;
+    }
 
+    // makes room for the pending frame and reads whatever the channel has, returns false if nothing was read
+    private boolean fillReadBuffer() {
+        if (!readBuffer.hasRemaining()) {
+            int pending = readBuffer.position() - readPos;
+            int needed = pending >= FRAME_HEADER_SIZE ? (int) readBuffer.getLong(readPos) : FRAME_HEADER_SIZE;
+            if (readPos > 0) {
+                // move the partial frame to the front
+                readBuffer.limit(readBuffer.position()).position(readPos);
+                readBuffer.compact();
+                readPos = 0;
+            }
+            if (readBuffer.capacity() < needed) {
+                ByteBuffer grown = BufferPool.SHARED.acquire(Math.max(needed, 2 * readBuffer.capacity()));
+                readBuffer.flip();
+                grown.put(readBuffer);
+                BufferPool.SHARED.release(readBuffer);
+                readBuffer = grown;
+            }
+        }
+        int bytesRead = -1;
         try {
-            bytesRead = channel.read(getReadBuffer());
+            bytesRead = channel.read(readBuffer);
         } catch (Throwable t) {
             // ignoring exception, if nothing is read we'll disconnect
         }
-        getReadBuffer().flip();
         if (bytesRead == -1) disconnect();
-        if (bytesRead < 0) return null;
-        ServerCmd serverCmd = ServerCmd.decodeCmd(getReadBuffer());
-        getReadBuffer().clear();
-        return serverCmd;
+        if (bytesRead > 0)
+            bytesIn += bytesRead;
+        return bytesRead > 0;
+    }
+
+    /**
+     * Queues a decoded command until it can be dispatched
+     */
+    public void enqueueCmd(ServerCmd cmd) {
+        pendingCmds.add(cmd);
+    }
+
+    public boolean canEnqueue() {
+        return !closed && pendingCmds.size() < maxInFlight && outboundBytes < MAX_OUTBOUND_BYTES;
+    }
+
+    /**
+     * Returns the next command that may be executed now. Pipelined commands run concurrently up
+     * to maxInFlight, all other commands wait for every previous one and block the ones after them.
+     */
+    public ServerCmd nextDispatchable() {
+        ServerCmd next = pendingCmds.peek();
+        if (next == null || closed)
+            return null;
+        boolean allowed = inFlight == 0 || (next.isPipelined() && !serialInFlight && inFlight < maxInFlight);
+        if (!allowed)
+            return null;
+        pendingCmds.poll();
+        inFlight++;
+        serialInFlight = !next.isPipelined();
+        return next;
     }
 
-    public void writeResponse(Object[] results) {
+    /**
+     * Stops reading from the client while its pending queue is full or it does not drain its responses
+     */
+    public void updateReadInterest() {
+        if (closed || !selectionKey.isValid())
+            return;
+        if (canEnqueue())
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        else
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Serializes the response of a finished command into the outbound queue and writes as much
+     * of it as the socket takes. The command is recycled afterwards.
+     */
+    public void writeResponse(ServerCmd cmd) {
+        inFlight--;
+        if (!closed) {
+            Response resp = cmd.getResponse();
+            ByteBuffer writeBuffer = BufferPool.SHARED.acquire(resp.getEncodedSize());
+            resp.encode(writeBuffer);
+            writeBuffer.flip();
+            outbound.add(writeBuffer);
+            outboundBytes += writeBuffer.remaining();
+            flush();
+            cmd.stamp(ServerCmd.WRITTEN);
+            reactor.getPhaseStats().record(cmd);
+        }
+        freeCmds.push(cmd);
+    }
+
+    // returns a command object to decode into, recycled ones are preferred
+    private ServerCmd acquireCmd() {
+        ServerCmd cmd = freeCmds.poll();
+        if (cmd == null) {
+            cmd = new ServerCmd();
+            cmd.getResponse().setClientSession(this);
+        }
+        return cmd;
+    }
+
+    /**
+     * Writes queued responses until the socket would block, then waits for OP_WRITE
+     */
+    public void flush() {
+        if (closed)
+            return;
         try {
-            getWriteBuffer().clear();
-            getWriteBuffer().putLong(ServerCmd.getResultBufferSize(results));
-            for (Object o: results) {
-                if (o instanceof Boolean) {
-                    Boolean b = (Boolean) o;
-                    getWriteBuffer().put((byte)(b ? 1 : 0));
-                } else if (o instanceof Byte) {
-                    getWriteBuffer().put((Byte) o);
-                } else if (o instanceof Short) {
-                    getWriteBuffer().putShort((Short) o);
-                } else if (o instanceof Integer) {
-                    getWriteBuffer().putInt((Integer) o);
-                } else if (o instanceof Float) {
-                    getWriteBuffer().putFloat((Float) o);
-                } else if (o instanceof Long) {
-                    getWriteBuffer().putLong((Long) o);
-                } else if (o instanceof Double) {
-                    getWriteBuffer().putDouble((Double) o);
-                } else if (o instanceof String) {
-                    byte[] utf8Arr = ((String) o).getBytes("UTF-8");
-                    getWriteBuffer().putInt(utf8Arr.length);
-                    getWriteBuffer().put(utf8Arr);
-                } else {
-                    throw new RuntimeException("Not able to serialize type " + o.getClass().getSimpleName());
-                }
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                int written = getChannel().write(head);
+                outboundBytes -= written;
+                bytesOut += written;
+                if (head.hasRemaining())
+                    break;
+                BufferPool.SHARED.release(outbound.poll());
             }
-            // write it to the channel
-            getWriteBuffer().flip();
-            while(getWriteBuffer().hasRemaining())
-                getChannel().write(getWriteBuffer());
         } catch (IOException e) {
-            e.printStackTrace();
+            MbServer.Log.warn("Error writing to client " + clientId + ": " + e.getMessage());
+            disconnect();
+            return;
         }
+        if (!selectionKey.isValid())
+            return;
+        if (outbound.isEmpty())
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+        else
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
     }
 
     public SocketChannel getChannel() {
@@ -102,11 +264,35 @@ public class ClientSession {
         return readBuffer;
     }
 
-    public ByteBuffer getWriteBuffer() {
-        return writeBuffer;
+    public Reactor getReactor() {
+        return reactor;
     }
 
     public long getClientId() {
         return clientId;
     }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    long[] getLastStatsCounts() {
+        return lastStatsCounts;
+    }
+
+    long getLastStatsTime() {
+        return lastStatsTime;
+    }
+
+    void setLastStatsTime(long lastStatsTime) {
+        this.lastStatsTime = lastStatsTime;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
 }
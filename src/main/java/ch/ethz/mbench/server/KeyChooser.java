@@ -0,0 +1,201 @@
+package ch.ethz.mbench.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the key an update or get operates on among the live keys of a client.
+ * The live keys of a client are baseDelKey, baseDelKey + nClients, ... up to baseInsKey.
+ * Implementations draw a key in constant time and without allocating.
+ */
+public abstract class KeyChooser {
+
+    public static final byte UNIFORM = 0;
+    public static final byte ZIPFIAN = 1;
+    public static final byte HOTSPOT = 2;
+    public static final byte LATEST = 3;
+
+    private static final String[] NAMES = {"uniform", "zipfian", "hotspot", "latest"};
+
+    private final byte dist;
+    private final double param1;
+    private final double param2;
+
+    protected KeyChooser(byte dist, double param1, double param2) {
+        this.dist = dist;
+        this.param1 = param1;
+        this.param2 = param2;
+    }
+
+    public abstract long nextKey(long baseInsKey, long baseDelKey, long nClients, long clientId);
+
+    /**
+     * Creates a chooser, parameters set to 0 take the distribution's default
+     */
+    public static KeyChooser create(byte dist, double param1, double param2) {
+        switch (dist) {
+            case UNIFORM:
+                return new Uniform();
+            case ZIPFIAN:
+                return new ScrambledZipfian(param1);
+            case HOTSPOT:
+                return new Hotspot(param1, param2);
+            case LATEST:
+                return new Latest(param1);
+            default:
+                throw new RuntimeException("Unknown key distribution " + dist);
+        }
+    }
+
+    public static byte fromName(String name) {
+        for (byte i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name))
+                return i;
+        }
+        throw new IllegalArgumentException("Unknown key distribution " + name);
+    }
+
+    public static String getName(byte dist) {
+        return NAMES[dist];
+    }
+
+    /**
+     * Whether this chooser was created for the given distribution and parameters
+     */
+    public boolean matches(byte dist, double param1, double param2) {
+        return this.dist == dist && this.param1 == param1 && this.param2 == param2;
+    }
+
+    // number of live keys of the client, at least one
+    protected static long numKeys(long baseInsKey, long baseDelKey, long nClients) {
+        return Math.max(1, (baseInsKey - baseDelKey) / nClients + 1);
+    }
+
+    /**
+     * Keys drawn uniformly, the way Tuple.rndKey always did
+     */
+    public static class Uniform extends KeyChooser {
+
+        Uniform() {
+            super(UNIFORM, 0, 0);
+        }
+
+        @Override
+        public long nextKey(long baseInsKey, long baseDelKey, long nClients, long clientId) {
+            return Tuple.rndKey(baseInsKey, baseDelKey, nClients, clientId);
+        }
+    }
+
+    /**
+     * Zipfian ranks (YCSB style) over a fixed, very large item count, so the constants are computed once.
+     * Ranks are mapped to the live key range through a hash so that popular keys are spread out.
+     */
+    public static class ScrambledZipfian extends KeyChooser {
+        protected static final long ITEM_COUNT = 10000000000L;
+        private final double theta;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+        private final double halfPowTheta;
+
+        ScrambledZipfian(double theta) {
+            this(ZIPFIAN, theta);
+        }
+
+        protected ScrambledZipfian(byte dist, double theta) {
+            super(dist, theta, 0);
+            this.theta = theta == 0 ? 0.99 : theta;
+            if (this.theta <= 0 || this.theta >= 1)
+                throw new IllegalArgumentException("Zipfian constant must be in (0, 1)");
+            zetan = zeta(ITEM_COUNT, this.theta);
+            double zeta2 = 1 + Math.pow(0.5, this.theta);
+            alpha = 1.0 / (1.0 - this.theta);
+            eta = (1 - Math.pow(2.0 / ITEM_COUNT, 1 - this.theta)) / (1 - zeta2 / zetan);
+            halfPowTheta = Math.pow(0.5, this.theta);
+        }
+
+        // sum of 1/i^theta for i in [1, n]: exact head and an integral for the tail
+        private static double zeta(long n, double theta) {
+            final int head = 100000;
+            double sum = 0;
+            for (int i = 1; i <= head; i++)
+                sum += 1.0 / Math.pow(i, theta);
+            double a = head + 0.5;
+            double b = n + 0.5;
+            sum += (Math.pow(b, 1 - theta) - Math.pow(a, 1 - theta)) / (1 - theta);
+            return sum;
+        }
+
+        // zipfian rank in [0, ITEM_COUNT), 0 is the most popular
+        protected long nextRank() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0)
+                return 0;
+            if (uz < 1.0 + halfPowTheta)
+                return 1;
+            return (long) (ITEM_COUNT * Math.pow(eta * u - eta + 1, alpha));
+        }
+
+        @Override
+        public long nextKey(long baseInsKey, long baseDelKey, long nClients, long clientId) {
+            long n = numKeys(baseInsKey, baseDelKey, nClients);
+            long idx = Long.remainderUnsigned(fnvHash64(nextRank()), n);
+            return baseDelKey + idx * nClients;
+        }
+
+        private static long fnvHash64(long val) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= val & 0xff;
+                hash *= 0x100000001B3L;
+                val >>>= 8;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * A fraction of the accesses (param2, default 0.8) goes to a fraction of the keys (param1, default 0.2),
+     * the rest is spread uniformly over the other keys
+     */
+    public static class Hotspot extends KeyChooser {
+        private final double hotSetFraction;
+        private final double hotOpFraction;
+
+        Hotspot(double hotSetFraction, double hotOpFraction) {
+            super(HOTSPOT, hotSetFraction, hotOpFraction);
+            this.hotSetFraction = hotSetFraction == 0 ? 0.2 : hotSetFraction;
+            this.hotOpFraction = hotOpFraction == 0 ? 0.8 : hotOpFraction;
+        }
+
+        @Override
+        public long nextKey(long baseInsKey, long baseDelKey, long nClients, long clientId) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            long n = numKeys(baseInsKey, baseDelKey, nClients);
+            long hotSize = Math.max(1, (long) (n * hotSetFraction));
+            long idx;
+            if (hotSize >= n || rnd.nextDouble() < hotOpFraction)
+                idx = rnd.nextLong(hotSize);
+            else
+                idx = hotSize + rnd.nextLong(n - hotSize);
+            return baseDelKey + idx * nClients;
+        }
+    }
+
+    /**
+     * Most recently inserted keys are the most popular, with zipfian decay (param1 is the zipfian constant)
+     */
+    public static class Latest extends ScrambledZipfian {
+
+        Latest(double theta) {
+            super(LATEST, theta);
+        }
+
+        @Override
+        public long nextKey(long baseInsKey, long baseDelKey, long nClients, long clientId) {
+            long n = numKeys(baseInsKey, baseDelKey, nClients);
+            long back = nextRank() % n;
+            return baseDelKey + (n - 1 - back) * nClients;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ch.ethz.mbench.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in nanoseconds with a relative error below 1.6%.
+ * Values below 128 have their own bucket, larger values share 64 buckets per power of two.
+ * There is a single writer, other threads merge a histogram into theirs while it is written.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int NUM_BUCKETS = SUB_COUNT + (63 - SUB_BITS + 1) * HALF_COUNT;
+
+    // written with lazySet only, so recording does not pay for a full fence
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    // only written when it grows, which becomes rare quickly
+    private volatile long maxValue;
+
+    /**
+     * Records a value, only called by the owning thread
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        int idx = bucketOf(nanos);
+        counts.lazySet(idx, counts.get(idx) + 1);
+        if (nanos > maxValue)
+            maxValue = nanos;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.lazySet(i, counts.get(i) + c);
+        }
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts.lazySet(i, 0);
+        maxValue = 0;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    public long getMax() {
+        return maxValue;
+    }
+
+    /**
+     * Highest value of the bucket holding the given percentile (0-100), 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] out = new long[1];
+        getPercentiles(getCount(), new double[]{percentile}, out, 0);
+        return out[0];
+    }
+
+    /**
+     * Computes ascending percentiles in a single pass over the buckets, total is the value of getCount
+     */
+    public void getPercentiles(long total, double[] percentiles, long[] out, int offset) {
+        int p = 0;
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS && p < percentiles.length && total > 0; i++) {
+            seen += counts.get(i);
+            while (p < percentiles.length && seen >= Math.max(1, (long) Math.ceil(total * percentiles[p] / 100.0)))
+                out[offset + p++] = Math.min(highestValueOf(i), maxValue);
+        }
+        // nothing recorded, or buckets written concurrently hold less than total
+        for (; p < percentiles.length; p++)
+            out[offset + p] = total == 0 ? 0 : maxValue;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = (bucket - SUB_COUNT) / HALF_COUNT + 1;
+        long sub = (bucket - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        long highest = ((sub + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
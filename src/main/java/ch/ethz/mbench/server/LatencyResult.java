@@ -0,0 +1,116 @@
+package ch.ethz.mbench.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Latency percentiles of every operation type and of every request phase per command type,
+ * as returned by a LATENCY command
+ */
+public class LatencyResult {
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    // count, p50, p99, p99.9, max
+    private static final int NUM_FIELDS = 2 + PERCENTILES.length;
+    private static final int PHASES_BASE = LatencyStats.NUM_OPS * NUM_FIELDS;
+
+    private final long[] values = new long[PHASES_BASE + PhaseStats.NUM_TYPES * PhaseStats.NUM_PHASES * NUM_FIELDS];
+
+    public void set(LatencyStats stats, PhaseStats phases) {
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++)
+            setFields(op * NUM_FIELDS, stats.get(op));
+        for (int type = 0; type < PhaseStats.NUM_TYPES; type++) {
+            for (int phase = 0; phase < PhaseStats.NUM_PHASES; phase++)
+                setFields(phaseIndex(type, phase), phases.get(type, phase));
+        }
+    }
+
+    private void setFields(int base, LatencyHistogram h) {
+        long count = h.getCount();
+        values[base] = count;
+        h.getPercentiles(count, PERCENTILES, values, base + 1);
+        values[base + NUM_FIELDS - 1] = h.getMax();
+    }
+
+    private static int phaseIndex(int type, int phase) {
+        return PHASES_BASE + (type * PhaseStats.NUM_PHASES + phase) * NUM_FIELDS;
+    }
+
+    public void decode(ByteBuffer bb) {
+        for (int i = 0; i < values.length; i++)
+            values[i] = bb.getLong();
+    }
+
+    public void encode(ByteBuffer bb) {
+        for (long value : values)
+            bb.putLong(value);
+    }
+
+    public int getEncodedSize() {
+        return 8 * values.length;
+    }
+
+    public long getCount(int op) {
+        return values[op * NUM_FIELDS];
+    }
+
+    public long getP50(int op) {
+        return values[op * NUM_FIELDS + 1];
+    }
+
+    public long getP99(int op) {
+        return values[op * NUM_FIELDS + 2];
+    }
+
+    public long getP999(int op) {
+        return values[op * NUM_FIELDS + 3];
+    }
+
+    public long getMax(int op) {
+        return values[op * NUM_FIELDS + 4];
+    }
+
+    /**
+     * Requests of the command type that were answered
+     */
+    public long getPhaseCount(ServerCmd.ServerCmdType type) {
+        return values[phaseIndex(type.ordinal(), PhaseStats.TOTAL)];
+    }
+
+    public long getPhaseP50(ServerCmd.ServerCmdType type, int phase) {
+        return values[phaseIndex(type.ordinal(), phase) + 1];
+    }
+
+    public long getPhaseP99(ServerCmd.ServerCmdType type, int phase) {
+        return values[phaseIndex(type.ordinal(), phase) + 2];
+    }
+
+    public long getPhaseP999(ServerCmd.ServerCmdType type, int phase) {
+        return values[phaseIndex(type.ordinal(), phase) + 3];
+    }
+
+    public long getPhaseMax(ServerCmd.ServerCmdType type, int phase) {
+        return values[phaseIndex(type.ordinal(), phase) + 4];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++) {
+            if (getCount(op) == 0)
+                continue;
+            sb.append(String.format("%-7s n=%d p50=%dus p99=%dus p99.9=%dus max=%dus%n", LatencyStats.getName(op),
+                    getCount(op), getP50(op) / 1000, getP99(op) / 1000, getP999(op) / 1000, getMax(op) / 1000));
+        }
+        for (ServerCmd.ServerCmdType type : ServerCmd.ServerCmdType.values()) {
+            if (getPhaseCount(type) == 0)
+                continue;
+            sb.append(String.format("%s n=%d, phases p50/p99 in us:", type, getPhaseCount(type)));
+            for (int phase = 0; phase < PhaseStats.NUM_PHASES; phase++) {
+                sb.append(String.format(" %s=%d/%d", PhaseStats.getName(phase), getPhaseP50(type, phase) / 1000,
+                        getPhaseP99(type, phase) / 1000));
+            }
+            sb.append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package ch.ethz.mbench.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and backend error counts of a service thread, one per operation type.
+ * Snapshots of all threads are merged on demand into a fresh instance.
+ */
+public class LatencyStats {
+
+    // insert, update, delete and get share their codes with OpPlan
+    public static final int INSERT = OpPlan.INSERT;
+    public static final int UPDATE = OpPlan.UPDATE;
+    public static final int DELETE = OpPlan.DELETE;
+    public static final int GET = OpPlan.GET;
+    public static final int COMMIT = 4;
+    public static final int QUERY1 = 5;
+    public static final int NUM_OPS = 6;
+
+    private static final String[] NAMES = {"insert", "update", "delete", "get", "commit", "q1"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NUM_OPS];
+    // operations the backend reported as failed, single writer like the histograms
+    private final AtomicLongArray errors = new AtomicLongArray(NUM_OPS);
+
+    public LatencyStats() {
+        for (int i = 0; i < NUM_OPS; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    public void record(int op, long nanos) {
+        histograms[op].record(nanos);
+    }
+
+    public void recordError(int op) {
+        errors.lazySet(op, errors.get(op) + 1);
+    }
+
+    public void recordErrors(int op, int n) {
+        if (n > 0)
+            errors.lazySet(op, errors.get(op) + n);
+    }
+
+    public void add(LatencyStats other) {
+        for (int i = 0; i < NUM_OPS; i++) {
+            histograms[i].add(other.histograms[i]);
+            errors.lazySet(i, errors.get(i) + other.errors.get(i));
+        }
+    }
+
+    public long getErrors(int op) {
+        return errors.get(op);
+    }
+
+    public LatencyHistogram get(int op) {
+        return histograms[op];
+    }
+
+    public static String getName(int op) {
+        return NAMES[op];
+    }
+}
@@ -9,277 +9,450 @@ import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  */
 public abstract class MbServer {
 
-    public static Map<SelectionKey, ClientSession> clientMap = new HashMap<>();
     public static Logger Log = Logger.getLogger(MbServer.class);
-    public static long clientIds;
+    // session ids are never reused, the number of connected clients goes down on disconnect
+    public static AtomicLong nextSessionId = new AtomicLong();
+    public static AtomicLong numClients = new AtomicLong();
     private static String LOCALHOST = "0.0.0.0";
     private short serverPort;
     private short numAsioThreads;
+    private short numReactors;
+    private int maxInFlight;
+    private int populateChunkSize;
     private short nCols;
     private short scaleFactor;
+    private short numGenerators;
+    private int generatorBatchSize;
     // server threads
     private ExecutorService service;
-    private List<Future<Response>> futures;
+    // one channel per service thread, fed by the workload generator threads
+    private WorkloadGenerator.Channel[] generatorChannels;
+    // channels no live service thread consumes from, a ring must never have two consumers
+    private final Queue<WorkloadGenerator.Channel> freeChannels = new ConcurrentLinkedQueue<>();
+    // latency histograms of every service thread
+    private final List<LatencyStats> serviceLatencies = new CopyOnWriteArrayList<>();
+    // sessions of all reactors, reported by STATS
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong failedRequests = new AtomicLong();
+    // answers STATS, which merges the statistics of all threads, away from the reactors and the service threads
+    private ExecutorService statsService;
+    private final long startTime = System.nanoTime();
     // nio
-    private Selector selector;
-    private SelectionKey serverKey;
+    private Reactor[] reactors;
     private ServerSocketChannel serverChannel;
 
-    public void initialize() {
-        service = Executors.newFixedThreadPool(numAsioThreads, new ServiceThreadFactory());
-        futures = new ArrayList<>();
+    public void initialize() throws IOException {
+        if (numGenerators > 0)
+            startGenerators();
+        service = new ThreadPoolExecutor(numAsioThreads, numAsioThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new ServiceThreadFactory()) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                // the thread dies with the task and is replaced before it terminates, so it has to
+                // give up its channel now
+                if (t != null)
+                    ((ServiceThread) Thread.currentThread()).retire();
+            }
+        };
+        statsService = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "mbench-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        reactors = new Reactor[numReactors];
+        for (int i = 0; i < numReactors; i++) {
+            reactors[i] = new Reactor(this, i);
+            Thread reactorThread = new Thread(reactors[i], "mbench-reactor-" + i);
+            reactorThread.start();
+        }
+    }
+
+    /**
+     * Starts the generator threads, each one feeding the channels of every numGenerators-th service thread
+     */
+    private void startGenerators() {
+        int nGen = Math.min(numGenerators, numAsioThreads);
+        generatorChannels = new WorkloadGenerator.Channel[numAsioThreads];
+        for (int i = 0; i < numAsioThreads; i++)
+            generatorChannels[i] = new WorkloadGenerator.Channel(nCols, generatorBatchSize);
+        freeChannels.addAll(Arrays.asList(generatorChannels));
+        for (int g = 0; g < nGen; g++) {
+            WorkloadGenerator.Channel[] assigned = new WorkloadGenerator.Channel[(numAsioThreads - g + nGen - 1) / nGen];
+            for (int i = 0; i < assigned.length; i++)
+                assigned[i] = generatorChannels[g + i * nGen];
+            Thread generatorThread = new Thread(new WorkloadGenerator(assigned), "mbench-generator-" + g);
+            generatorThread.setDaemon(true);
+            generatorThread.start();
+        }
+        System.out.println("Started " + nGen + " workload generators, batch size " + generatorBatchSize);
     }
 
     public void run() throws IOException, ExecutionException, InterruptedException {
         // start server threads
         initialize();
         serverChannel = ServerSocketChannel.open();
-        serverChannel.bind(new InetSocketAddress(LOCALHOST, serverPort)).configureBlocking(false);
-        selector = Selector.open();
-        serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        serverChannel.bind(new InetSocketAddress(LOCALHOST, serverPort));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LatencyResult latency = new LatencyResult();
+            latency.set(mergeLatencies(), mergePhases());
+            System.out.print("Operation latencies:\n" + latency);
+        }, "mbench-shutdown"));
 
         try {
-            System.out.println("Started mbench server");
+            System.out.println("Started mbench server with " + numReactors + " reactors");
             while (true)
-                loop();
+                accept();
         } catch (Throwable t) {
             t.printStackTrace();
         }
     }
 
-    public void loop() throws Throwable {
-        // process incoming requests
-        selector.selectNow();
-        for (SelectionKey key : selector.selectedKeys()) {
-            if (!key.isValid())
-                continue;
-            if (key.isReadable()) {
-                ClientSession clieSession = clientMap.get(key);
-                if (clieSession == null) {
-                    continue;
-                }
-                processRequest(clieSession, key);
-            }
+    /**
+     * Accepts a new client and assigns it to the reactor with the fewest sessions
+     */
+    public void accept() throws IOException {
+        SocketChannel acceptedChannel = serverChannel.accept();
+        if (acceptedChannel == null) return;
+        Reactor target = reactors[0];
+        for (Reactor reactor : reactors) {
+            if (reactor.getNumSessions() < target.getNumSessions())
+                target = reactor;
+        }
+        target.register(acceptedChannel);
+    }
 
-            // handle a new client that connects
-            if (key == serverKey) {
-                SocketChannel acceptedChannel = serverChannel.accept();
-                if (acceptedChannel == null) continue;
-                acceptedChannel.configureBlocking(false);
-                SelectionKey readKey = acceptedChannel.register(selector, SelectionKey.OP_READ);
-                clientMap.put(readKey, new ClientSession(readKey, acceptedChannel, ++clientIds));
-                Log.info("New client ip=" + acceptedChannel.getRemoteAddress() + ", nClients=" + clientMap.size());
-                System.out.println("New client ip=" + acceptedChannel.getRemoteAddress() + ", nClients=" + clientMap.size());
-            }
+    void processRequest(ClientSession clieSession) {
+        ServerCmd scm;
+        while (clieSession.canEnqueue() && (scm = clieSession.readCmd()) != null)
+            clieSession.enqueueCmd(scm);
+        while ((scm = clieSession.nextDispatchable()) != null)
+            dispatch(clieSession, scm);
+        clieSession.updateReadInterest();
+    }
+
+    private void dispatch(ClientSession clieSession, ServerCmd scm) {
+        if (scm.getType() == ServerCmd.ServerCmdType.DISCONNECT) {
+            clieSession.disconnect();
+            return;
         }
+        scm.getResponse().reset(scm);
+        if (scm.getType() == ServerCmd.ServerCmdType.STATS) {
+            // not queued behind a saturated executor, and merging does not stall the reactor's I/O
+            scm.stamp(ServerCmd.DISPATCHED);
+            statsService.execute(() -> {
+                scm.stamp(ServerCmd.STARTED);
+                fillStats(scm.getResponse().getStats(), clieSession, scm.isKeepStatsWindow());
+                scm.stamp(ServerCmd.EXECUTED);
+                scm.getResponse().setResult(true, "", 0);
+                clieSession.getReactor().complete(scm);
+            });
+            return;
+        }
+        // the task is created once per command object and reused with it
+        if (scm.task == null)
+            scm.task = () -> execute(scm);
+        scm.stamp(ServerCmd.DISPATCHED);
+        service.execute(scm.task);
+    }
 
-        // send results of processed requests
-        selector.selectedKeys().clear();
-        List<Future<Response>> nextFutures = new ArrayList<>();
-        for (Future<Response> future : futures) {
-            if (future.isDone()) {
-                Response resp = future.get();
-                resp.getClientSession().writeResponse(resp.getResults());
-            } else {
-                nextFutures.add(future);
+    /**
+     * Runs a request on a service thread and hands its response back to the session's reactor
+     */
+    private void execute(ServerCmd scm) {
+        scm.stamp(ServerCmd.STARTED);
+        Response resp = scm.getResponse();
+        try {
+            ServiceThread serviceThread = (ServiceThread) Thread.currentThread();
+            switch (scm.getType()) {
+                case CREATE_SCHEMA:
+                    createSchema(nCols, serviceThread.connection, resp);
+                    break;
+                case POPULATE:
+                    // the last shard to finish completes the command
+                    populate(scm);
+                    return;
+                case BATCH_OP:
+                    OpPlan plan = serviceThread.getOpPlan(scm.getBatchOp());
+                    try {
+                        doBatchOp(scm, serviceThread.connection, serviceThread.getKeyChooser(scm.getBatchOp()), plan,
+                                serviceThread.latency, resp);
+                    } finally {
+                        serviceThread.releaseOpPlan();
+                    }
+                    break;
+                case Q1:
+                    query1(scm, serviceThread.connection, serviceThread.latency, resp);
+                    break;
+                case Q2:
+                    resp.setResult(true, "Q2 is not needed", 0);
+                    break;
+                case Q3:
+                    resp.setResult(true, "Q3 is not needed", 0);
+                    break;
+                case LATENCY:
+                    resp.getLatency().set(mergeLatencies(), mergePhases());
+                    resp.setResult(true, "", 0);
+                    break;
+                default:
+                    break;
             }
+            // commands without a backend transaction spent their whole run executing
+            if (scm.getStamp(ServerCmd.EXECUTED) == 0)
+                scm.stamp(ServerCmd.EXECUTED);
+        } catch (Throwable t) {
+            Log.error("Error processing request", t);
+            failedRequests.incrementAndGet();
+            resp.setResult(false, "ERROR:" + t.getClass().getSimpleName(), 0);
         }
-        // this is save because access to futures are single-threaded
-        futures = nextFutures;
+        resp.getClientSession().getReactor().complete(scm);
+    }
+
+    /**
+     * Merges the latency histograms of all service threads into a new snapshot
+     */
+    private LatencyStats mergeLatencies() {
+        LatencyStats merged = new LatencyStats();
+        for (LatencyStats stats : serviceLatencies)
+            merged.add(stats);
+        return merged;
     }
 
-    private void processRequest(ClientSession clieSession, SelectionKey key) {
-        ServerCmd scm = clieSession.readCmd();
-        if (scm == null) return;
-        switch (scm.getType()) {
-            case CREATE_SCHEMA:
-                futures.add(service.submit(() -> {
-                    ServiceThread serviceThread = (ServiceThread) Thread.currentThread();
-                    Response resp = createSchema(nCols, serviceThread.connection);
-                    resp.setClientSession(clieSession);
-                    return resp;
-                }));
-                break;
-            case POPULATE:
-                futures.add(service.submit(() -> {
-                    Object[] args = scm.getArgs();
-                    ServiceThread serviceThread = (ServiceThread) Thread.currentThread();
-                    Response resp = populate((Long) args[0], (Long) args[1], serviceThread.connection);
-                    resp.setClientSession(clieSession);
-                    return resp;
-                }));
-                break;
-            case BATCH_OP:
-                futures.add(service.submit(() -> {
-                    Object[] args = scm.getArgs();
-                    ServiceThread serviceThread = (ServiceThread) Thread.currentThread();
-                    Response resp = doBatchOp((int) args[0], (double) args[1], (double) args[2], (double) args[3],
-                            (int) args[4], (long) args[5], (long) args[6], (long) args[7], serviceThread.connection);
-                    resp.setClientSession(clieSession);
-                    return resp;
-                }));
-                break;
-            case Q1:
-                futures.add(service.submit(() -> {
-                    ServiceThread serviceThread = (ServiceThread) Thread.currentThread();
-                    Response resp = query1(serviceThread.connection);
-                    resp.setClientSession(clieSession);
-                    return resp;
-                }));
-                break;
-            case Q2:
-                futures.add(service.submit(() -> {
-                    long responseTime = 0;
-                    Response resp = new Response(new Object[]{true, "Q2 is not needed", responseTime});
-                    resp.setClientSession(clieSession);
-                    return resp;
-                }));
-                break;
-            case Q3:
-                futures.add(service.submit(() -> {
-                    long responseTime = 0;
-                    Response resp = new Response(new Object[]{true, "Q3 is not needed", responseTime});
-                    resp.setClientSession(clieSession);
-                    return resp;
-                }));
-                break;
-            case DISCONNECT:
-                clieSession.disconnect();
-                break;
+    /**
+     * Merges the request phases recorded by all reactors into a new snapshot
+     */
+    private PhaseStats mergePhases() {
+        PhaseStats merged = new PhaseStats();
+        for (Reactor reactor : reactors)
+            merged.add(reactor.getPhaseStats());
+        return merged;
+    }
+
+    /**
+     * Fills a STATS response, rates cover the time since the previous STATS of the same session
+     * that did not keep the window
+     */
+    private void fillStats(StatsResult stats, ClientSession session, boolean keepWindow) {
+        stats.setServer(getClass().getSimpleName(), nCols, scaleFactor);
+        LatencyStats merged = mergeLatencies();
+        long now = System.nanoTime();
+        long[] lastCounts = session.getLastStatsCounts();
+        // the first STATS of a session reports rates since the server started
+        long lastTime = session.getLastStatsTime() == 0 ? startTime : session.getLastStatsTime();
+        stats.setOps(now - lastTime, merged, mergePhases(), lastCounts);
+        if (!keepWindow) {
+            for (int op = 0; op < LatencyStats.NUM_OPS; op++)
+                lastCounts[op] = merged.get(op).getCount();
+            session.setLastStatsTime(now);
+        }
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) service;
+        stats.setExecutor(executor.getQueue().size(), executor.getActiveCount(), failedRequests.get());
+        stats.setBufferPool(BufferPool.SHARED);
+        // sessions may come and go while they are copied
+        ClientSession[] snapshot = sessions.toArray(new ClientSession[0]);
+        stats.setNumSessions(snapshot.length);
+        for (int i = 0; i < snapshot.length; i++) {
+            ClientSession s = snapshot[i];
+            stats.setSession(i, s.getClientId(), s.getBytesIn(), s.getBytesOut(), s.getInFlight());
         }
     }
 
-    private Response query1(Connection mConnection) {
+    void addSession(ClientSession session) {
+        sessions.add(session);
+    }
+
+    void removeSession(ClientSession session) {
+        sessions.remove(session);
+    }
+
+    private void query1(ServerCmd scm, Connection mConnection, LatencyStats latency, Response resp) {
         long t0 = System.nanoTime();
 
         Transaction tx = mConnection.startTx();
         long nTuples = tx.query1();
+        scm.stamp(ServerCmd.EXECUTED);
         boolean commitRes = tx.commit();
+        scm.stamp(ServerCmd.COMMITTED);
         long responseTime = System.nanoTime() - t0;
+        latency.record(LatencyStats.QUERY1, responseTime);
+        if (!commitRes)
+            latency.recordError(LatencyStats.QUERY1);
         String errorMsg = "";
         if (!commitRes)
             errorMsg = "Error:nTup=" + nTuples;
-        Response resp = new Response(new Object[]{commitRes, errorMsg, responseTime});
+        resp.setResult(commitRes, errorMsg, responseTime);
         System.out.println("Query 1 response time: " + responseTime);
-        return resp;
     }
 
-    private Response doBatchOp(final int nOps, final double iProb, final double dProb, final double uProb, final int clientId,
-                               final long nClients, long baseInsKey, long baseDelKey, final Connection mConnection) {
+    private void doBatchOp(final ServerCmd scm, final Connection mConnection, final KeyChooser keyChooser,
+                           final OpPlan plan, final LatencyStats latency, final Response resp) {
+        final BatchOpCmd cmd = scm.getBatchOp();
+        final int nOps = cmd.getNOps();
+        final double iProb = cmd.getIProb();
+        final double dProb = cmd.getDProb();
+        final double uProb = cmd.getUProb();
+        final int clientId = cmd.getClientId();
+        final long nClients = cmd.getNClients();
+        long baseInsKey = cmd.getBaseInsKey();
+        long baseDelKey = cmd.getBaseDelKey();
         double gProb = 1.0 - iProb - dProb - uProb;
         if (gProb < 0.0) {
             throw new RuntimeException("Probabilities sum up to negative number");
         }
 
-        Map<Long, Tuple> inserts = new HashMap<>();
-        Vector<Long> deletes = new Vector<>();
-        Vector<UpdatePair> updates = new Vector<>();
-        Vector<Long> getKeys = new Vector<>();
-        double ops[] = new double[nOps];
         for (int i = 0; i < nOps; i++) {
-            ops[i] = Tuple.getRandomDouble(0.0, 1.0);
-            if (ops[i] < iProb) {
+            double op = plan.nextDice();
+            if (op < iProb) {
                 //do insert
                 baseInsKey += nClients;
-                inserts.put(baseInsKey, Tuple.createInsert(nCols));
-            } else if (ops[i] < iProb + uProb) {
+                plan.addInsert(baseInsKey);
+            } else if (op < iProb + uProb) {
                 // do update
-                long updKey = Tuple.rndKey(baseInsKey, baseDelKey, nClients, clientId);
-                updates.add(new UpdatePair(updKey, Tuple.rndUpdate(nCols)));
-            } else if (ops[i] < iProb + uProb + dProb) {
+                plan.addUpdate(keyChooser.nextKey(baseInsKey, baseDelKey, nClients, clientId));
+            } else if (op < iProb + uProb + dProb) {
                 if (baseDelKey + nClients >= baseInsKey) {
                     // do insert
-                    ops[i] = -1.0;
                     baseInsKey += nClients;
-                    inserts.put(baseInsKey, Tuple.createInsert(nCols));
+                    plan.addInsert(baseInsKey);
                 } else {
                     // do delete
-                    deletes.add(baseDelKey);
+                    plan.addDelete(baseDelKey);
                     baseDelKey += nClients;
                 }
             } else {
                 // do get
-                getKeys.add(Tuple.rndKey(baseInsKey, baseDelKey, nClients, clientId));
+                plan.addGet(keyChooser.nextKey(baseInsKey, baseDelKey, nClients, clientId));
             }
         }
-        // do actual operations
-        Iterator<Map.Entry<Long, Tuple>> insIter = inserts.entrySet().iterator();
-        Iterator<Long> delIter = deletes.iterator();
-        Iterator<UpdatePair> updIter = updates.iterator();
-        Iterator<Long> getIter = getKeys.iterator();
+        // do actual operations, in the order they were planned
+        scm.stamp(ServerCmd.GENERATED);
 
         long t0 = System.nanoTime();
         int sucOps = 0;
 
         Transaction tx = mConnection.startTx();
+        boolean async = tx.isAsync();
+        // each operation ends where the next one starts, so one clock read per operation
+        long opStart = System.nanoTime();
         for (int i = 0; i < nOps; i++) {
-            if (ops[i] < iProb) {
-                //do insert
-                Map.Entry<Long, Tuple> nextIns = insIter.next();
-                if (tx.insert(nextIns.getKey(), nextIns.getValue()))
-                    sucOps++;
-            } else if (ops[i] < iProb + uProb) {
-                // do update
-                UpdatePair nextUpd = updIter.next();
-                if (tx.update(nextUpd.key, nextUpd.tuple))
-                    sucOps++;
-            } else if (ops[i] < iProb + uProb + dProb) {
-                // do delete
-                if (tx.remove(delIter.next()))
-                    sucOps++;
-            } else {
-                // do get
-                if (tx.get(getIter.next()))
-                    sucOps++;
+            boolean res;
+            byte op = plan.getOp(i);
+            switch (op) {
+                case OpPlan.INSERT:
+                    res = tx.insert(plan.getKey(i), plan.getTuples(i), plan.getRow(i));
+                    break;
+                case OpPlan.UPDATE:
+                    res = tx.update(plan.getKey(i), plan.getTuples(i), plan.getRow(i));
+                    break;
+                case OpPlan.DELETE:
+                    res = tx.remove(plan.getKey(i));
+                    break;
+                default:
+                    res = tx.get(plan.getKey(i));
+                    break;
             }
+            long opEnd = System.nanoTime();
+            // an asynchronous operation has only been started, its latency is known after commit
+            if (!async)
+                latency.record(op, opEnd - opStart);
+            opStart = opEnd;
+            if (res)
+                sucOps++;
+            else
+                latency.recordError(op);
         }
+        scm.stamp(ServerCmd.EXECUTED);
         boolean commitRes = tx.commit();
+        scm.stamp(ServerCmd.COMMITTED);
+        latency.record(LatencyStats.COMMIT, System.nanoTime() - opStart);
+        if (!commitRes)
+            latency.recordError(LatencyStats.COMMIT);
+        tx.recordLatencies(latency);
+        // operations executed asynchronously only fail once they are joined at commit
+        for (int op = OpPlan.INSERT; op <= OpPlan.GET; op++) {
+            int failed = tx.getFailedOps(op);
+            sucOps -= failed;
+            latency.recordErrors(op, failed);
+        }
 
         long responseTime = System.nanoTime() - t0;
         boolean success = commitRes && (nOps == sucOps);
-        StringBuilder errorMsg = new StringBuilder();
+        String errorMsg = "";
         if (!success)
-            errorMsg.append("ERROR:").append("suc=").append(sucOps).append("/").append(nOps);
-        Response resp = new Response(new Object[]{success, errorMsg.toString(), baseInsKey, baseDelKey, responseTime});
-        return resp;
+            errorMsg = "ERROR:" + "suc=" + sucOps + "/" + nOps;
+        resp.setResult(success, errorMsg, responseTime);
+        resp.getBatchOp().set(baseInsKey, baseDelKey);
     }
 
-    public Response populate(long start, long end, Connection mConnection) {
-        Transaction tx = mConnection.startTx();
-        Map<Long, Tuple> inserts = new HashMap<>();
-        long sucOps = 0;
-        for (long i = start; i < end; ++i) {
-            inserts.put(i, Tuple.createInsert(nCols));
-        }
-        long t0 = System.nanoTime();
-        for (Map.Entry<Long, Tuple> ins : inserts.entrySet()) {
-            if (tx.insert(ins.getKey(), ins.getValue()))
-                sucOps++;
+    /**
+     * Splits the POPULATE range into shards that run concurrently on the service threads
+     */
+    private void populate(ServerCmd scm) {
+        long start = scm.getPopulateStart();
+        long end = scm.getPopulateEnd();
+        long nChunks = Math.max(1, (end - start + populateChunkSize - 1) / populateChunkSize);
+        int nShards = (int) Math.min(numAsioThreads, nChunks);
+        PopulateJob job = new PopulateJob(scm, nShards);
+        for (int i = 1; i < nShards; i++) {
+            final int shard = i;
+            service.execute(() -> populateShard(job, shard));
         }
-        boolean commitRes = tx.commit();
-        long responseTime = System.nanoTime() - t0;
-        boolean success = commitRes && (end - start == sucOps);
+        populateShard(job, 0);
+    }
 
-        StringBuilder errorMsg = new StringBuilder();
-        if (!success)
-            errorMsg.append("ERROR:").append("suc=").append(sucOps).append("/").append(end - start);
-        Response resp = new Response(new Object[]{success, errorMsg.toString(), responseTime});
-        return resp;
+    /**
+     * Inserts the keys of a shard in key order, generating and committing them one chunk at a time
+     * so that memory stays bounded whatever the size of the range
+     */
+    private void populateShard(PopulateJob job, int shard) {
+        long start = job.shardStart(shard);
+        long end = job.shardStart(shard + 1);
+        long sucOps = 0;
+        long responseTime = 0;
+        boolean commitRes = true;
+        try {
+            ServiceThread serviceThread = (ServiceThread) Thread.currentThread();
+            TupleBatch chunk = serviceThread.getPopulateChunk();
+            for (long chunkStart = start; chunkStart < end; chunkStart += chunk.capacity()) {
+                long chunkEnd = Math.min(end, chunkStart + chunk.capacity());
+                chunk.clear();
+                for (long i = chunkStart; i < chunkEnd; ++i) {
+                    chunk.addInsert(i);
+                }
+                long t0 = System.nanoTime();
+                Transaction tx = serviceThread.connection.startTx();
+                for (int row = 0; row < chunk.size(); row++) {
+                    if (tx.insert(chunk.getKey(row), chunk, row))
+                        sucOps++;
+                }
+                commitRes &= tx.commit();
+                sucOps -= tx.getFailedOps(OpPlan.INSERT);
+                responseTime += System.nanoTime() - t0;
+            }
+        } catch (Throwable t) {
+            Log.error("Error populating shard [" + start + ", " + end + ")", t);
+            commitRes = false;
+        }
+        job.shardDone(shard, sucOps, commitRes, responseTime);
     }
 
-    public Response createSchema(int nCols, Connection mConnection) {
+    public void createSchema(int nCols, Connection mConnection, Response resp) {
         mConnection.createSchema(nCols);
-        Response resp = new Response(new Object[]{true, ""});
-        return resp;
+        resp.setResult(true, "", 0);
     }
 
     protected abstract Connection createConnection();
 
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
     public short getNCols() {
         return nCols;
     }
@@ -288,6 +461,11 @@ public abstract class MbServer {
         Options options = new Options();
         options.addOption(Option.builder("h").argName("help").desc("Show help message").build());
         options.addOption(Option.builder("t").argName("threads").hasArg().desc("Number of asio threads").build());
+        options.addOption(Option.builder("r").argName("reactors").hasArg().desc("Number of I/O reactor threads").build());
+        options.addOption(Option.builder("pi").argName("pipeline-depth").hasArg().desc("Max pipelined requests in flight per client").build());
+        options.addOption(Option.builder("pc").argName("populate-chunk").hasArg().desc("Rows generated and committed at once by POPULATE").build());
+        options.addOption(Option.builder("gt").argName("generator-threads").hasArg().desc("Threads generating batch tuples ahead of time, 0 generates them inline").build());
+        options.addOption(Option.builder("gb").argName("generator-batch").hasArg().desc("Operations covered by a batch prepared by the generators").build());
         options.addOption(Option.builder("p").argName("port").hasArg().desc("Port to bind to").build());
         options.addOption(Option.builder("n").argName("num-columns").hasArg().desc("Number of columns of table").build());
         options.addOption(Option.builder("s").argName("scaling-factor").required(true).hasArg().desc("Scaling factor").build());
@@ -305,11 +483,20 @@ public abstract class MbServer {
                 System.exit(0);
             }
             numAsioThreads = Short.parseShort(commandLine.getOptionValue("t", "12"));
+            numReactors = Short.parseShort(commandLine.getOptionValue("r", "1"));
+            maxInFlight = Integer.parseInt(commandLine.getOptionValue("pi", "32"));
+            if (maxInFlight < 1)
+                throw new ParseException("Pipeline depth has to be at least 1");
+            populateChunkSize = Integer.parseInt(commandLine.getOptionValue("pc", "1000"));
+            if (populateChunkSize < 1)
+                throw new ParseException("Populate chunk size has to be at least 1");
+            numGenerators = Short.parseShort(commandLine.getOptionValue("gt", "1"));
+            generatorBatchSize = Integer.parseInt(commandLine.getOptionValue("gb", "1000"));
             serverPort = Short.parseShort(commandLine.getOptionValue("p", "8713"));
             nCols = Short.parseShort(commandLine.getOptionValue("n", "10"));
             scaleFactor = Short.parseShort(commandLine.getOptionValue("s"));
         } catch (ParseException exception) {
-            System.out.print("Parse error: ");
+            System.out.println("Parse error: " + exception.getMessage());
             new HelpFormatter().printHelp("mbench-server", options);
             System.exit(0);
         }
@@ -331,27 +518,139 @@ public abstract class MbServer {
      */
     public interface Transaction {
 
-        boolean insert(Long key, Tuple value);
+        boolean insert(long key, TupleBatch tuples, int row);
 
         boolean commit();
 
-        boolean update(Long key, Tuple value);
+        boolean update(long key, TupleBatch tuples, int row);
 
-        boolean remove(Long key);
+        boolean remove(long key);
 
-        boolean get(Long key);
+        boolean get(long key);
 
         long query1();
 
+        /**
+         * Operations of a type (see OpPlan) that failed after their call had returned true, known once
+         * commit returned. Backends executing operations synchronously report failures from the calls.
+         */
+        default int getFailedOps(int op) {
+            return 0;
+        }
+
+        /**
+         * True if insert, update, remove and get only start their operation and commit waits for it to
+         * complete. The latency of an operation is then not measured around its call but recorded by
+         * recordLatencies, and the backend time of a BATCH_OP falls into its commit phase.
+         */
+        default boolean isAsync() {
+            return false;
+        }
+
+        /**
+         * Records the latency of every operation started asynchronously since the previous commit,
+         * from its start until it completed, once commit returned. Failed operations are not recorded.
+         */
+        default void recordLatencies(LatencyStats latency) {
+        }
+
+    }
+
+    // state shared by the shards of a POPULATE command
+    private class PopulateJob {
+        private final ServerCmd scm;
+        private final long start;
+        private final long end;
+        private final int nShards;
+        private final long t0 = System.nanoTime();
+        private final AtomicInteger remaining;
+        private final AtomicLong sucRows = new AtomicLong();
+        private volatile boolean failed;
+
+        PopulateJob(ServerCmd scm, int nShards) {
+            this.scm = scm;
+            this.start = scm.getPopulateStart();
+            this.end = scm.getPopulateEnd();
+            this.nShards = nShards;
+            this.remaining = new AtomicInteger(nShards);
+            scm.getResponse().getPopulate().setNumShards(nShards);
+        }
+
+        long shardStart(int shard) {
+            return start + (end - start) * shard / nShards;
+        }
+
+        void shardDone(int shard, long sucOps, boolean commitRes, long shardTime) {
+            Response resp = scm.getResponse();
+            resp.getPopulate().setShardTime(shard, shardTime);
+            sucRows.addAndGet(sucOps);
+            if (!commitRes)
+                failed = true;
+            if (remaining.decrementAndGet() > 0)
+                return;
+            // last shard merges the results, shards commit chunk by chunk so it all counts as execution
+            scm.stamp(ServerCmd.EXECUTED);
+            long responseTime = System.nanoTime() - t0;
+            long total = sucRows.get();
+            boolean success = !failed && (end - start == total);
+            String errorMsg = "";
+            if (!success)
+                errorMsg = "ERROR:" + "suc=" + total + "/" + (end - start);
+            resp.setResult(success, errorMsg, responseTime);
+            resp.getPopulate().set(total, responseTime > 0 ? total * 1e9 / responseTime : 0, nShards);
+            resp.getClientSession().getReactor().complete(scm);
+        }
     }
 
     // service thread keeps its own connection
     private class ServiceThread extends Thread {
         private final Connection connection;
-
-        public ServiceThread(Runnable runnable, Connection connection) {
+        private TupleBatch populateChunk;
+        private KeyChooser keyChooser;
+        private final OpPlan opPlan;
+        private final LatencyStats latency = new LatencyStats();
+        // null if workload generation is disabled
+        private final WorkloadGenerator.Channel generatorChannel;
+
+        public ServiceThread(Runnable runnable, Connection connection, WorkloadGenerator.Channel generatorChannel) {
             super(runnable);
             this.connection = connection;
+            this.generatorChannel = generatorChannel;
+            this.opPlan = new OpPlan(nCols, generatorChannel);
+            serviceLatencies.add(latency);
+        }
+
+        // tells the generator which rows to prepare for the batches to come
+        private OpPlan getOpPlan(BatchOpCmd cmd) {
+            if (generatorChannel != null)
+                generatorChannel.setOpMix(cmd.getIProb(), cmd.getUProb());
+            opPlan.reset(cmd.getNOps());
+            return opPlan;
+        }
+
+        private void releaseOpPlan() {
+            opPlan.release();
+        }
+
+        // hands the batches and the channel over to the thread replacing this one
+        private void retire() {
+            if (generatorChannel == null)
+                return;
+            opPlan.close();
+            freeChannels.add(generatorChannel);
+        }
+
+        private TupleBatch getPopulateChunk() {
+            if (populateChunk == null)
+                populateChunk = new TupleBatch(nCols, populateChunkSize);
+            return populateChunk;
+        }
+
+        // the chooser is kept as long as clients ask for the same distribution
+        private KeyChooser getKeyChooser(BatchOpCmd cmd) {
+            if (keyChooser == null || !keyChooser.matches(cmd.getKeyDist(), cmd.getDistParam1(), cmd.getDistParam2()))
+                keyChooser = KeyChooser.create(cmd.getKeyDist(), cmd.getDistParam1(), cmd.getDistParam2());
+            return keyChooser;
         }
     }
 
@@ -359,19 +658,13 @@ public abstract class MbServer {
     private class ServiceThreadFactory implements ThreadFactory {
         @Override
         public Thread newThread(Runnable runnable) {
-            return new ServiceThread(runnable, createConnection());
-        }
-    }
-
-    private class UpdatePair {
-
-        private final long key;
-        private final Tuple tuple;
-
-        public UpdatePair(long key, Tuple tuple) {
-            this.key = key;
-            this.tuple = tuple;
+            WorkloadGenerator.Channel channel = null;
+            if (generatorChannels != null) {
+                channel = freeChannels.poll();
+                if (channel == null)
+                    throw new IllegalStateException("Every workload generator channel is owned by a service thread");
+            }
+            return new ServiceThread(runnable, createConnection(), channel);
         }
     }
 }
-
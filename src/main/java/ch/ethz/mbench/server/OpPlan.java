@@ -0,0 +1,151 @@
+package ch.ethz.mbench.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Operations of a BATCH_OP in the order they were generated.
+ * A plan is owned by a service thread and reused for every batch, it only grows when a batch
+ * has more operations than any batch before. Rows and dice come slot by slot from the batches a
+ * WorkloadGenerator prepared for the service thread when one is available and are generated inline
+ * otherwise. A prepared batch outlives a plan until all its slots are used, so one batch serves
+ * several small plans and a large plan spans several batches.
+ */
+public class OpPlan {
+
+    public static final byte INSERT = 0;
+    public static final byte UPDATE = 1;
+    public static final byte DELETE = 2;
+    public static final byte GET = 3;
+
+    private final int nCols;
+    // null if workload generation is disabled
+    private final WorkloadGenerator.Channel channel;
+    private int size;
+    private byte[] ops = new byte[0];
+    private long[] keys = new long[0];
+    // batch and row holding the tuple, unused for deletes and gets
+    private TupleBatch[] tuples = new TupleBatch[0];
+    private int[] rows = new int[0];
+    // rows generated inline, when the generator is behind
+    private TupleBatch ownRows;
+    // batch the next slots come from, kept across plans until it is used up
+    private WorkloadGenerator.PreparedBatch current;
+    // batches used up by this plan, handed back on release
+    private final List<WorkloadGenerator.PreparedBatch> used = new ArrayList<>();
+    // slot of the operation being planned, -1 if it is generated inline
+    private int slot;
+
+    public OpPlan(int nCols, WorkloadGenerator.Channel channel) {
+        this.nCols = nCols;
+        this.channel = channel;
+    }
+
+    /**
+     * Empties the plan and makes room for nOps operations
+     */
+    public void reset(int nOps) {
+        size = 0;
+        if (ops.length < nOps) {
+            ops = new byte[nOps];
+            keys = new long[nOps];
+            tuples = new TupleBatch[nOps];
+            rows = new int[nOps];
+        }
+        if (ownRows == null || ownRows.capacity() < nOps)
+            ownRows = new TupleBatch(nCols, nOps);
+        ownRows.clear();
+    }
+
+    /**
+     * Moves to the next operation and returns the random number that decides its type
+     */
+    public double nextDice() {
+        slot = -1;
+        while (channel != null) {
+            if (current == null && (current = channel.take()) == null)
+                break;
+            slot = current.nextSlot();
+            if (slot >= 0)
+                return current.getDice(slot);
+            used.add(current);
+            current = null;
+        }
+        return ThreadLocalRandom.current().nextDouble();
+    }
+
+    public void addInsert(long key) {
+        if (slot >= 0)
+            add(INSERT, key, current.insertRow(slot, key), slot);
+        else
+            add(INSERT, key, ownRows, ownRows.addInsert(key));
+    }
+
+    public void addUpdate(long key) {
+        if (slot >= 0)
+            add(UPDATE, key, current.updateRow(slot, key), slot);
+        else
+            add(UPDATE, key, ownRows, ownRows.addUpdate(key));
+    }
+
+    public void addDelete(long key) {
+        add(DELETE, key, null, -1);
+    }
+
+    public void addGet(long key) {
+        add(GET, key, null, -1);
+    }
+
+    private void add(byte op, long key, TupleBatch batch, int row) {
+        ops[size] = op;
+        keys[size] = key;
+        tuples[size] = batch;
+        rows[size] = row;
+        size++;
+    }
+
+    /**
+     * Hands the batches this plan used up back to the generator, to be called once the rows are
+     * not needed anymore
+     */
+    public void release() {
+        for (WorkloadGenerator.PreparedBatch batch : used)
+            channel.recycle(batch);
+        used.clear();
+    }
+
+    /**
+     * Hands every batch back, including the one in use, before the plan is dropped
+     */
+    public void close() {
+        release();
+        if (current != null) {
+            channel.recycle(current);
+            current = null;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte getOp(int i) {
+        return ops[i];
+    }
+
+    public long getKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Batch holding the tuple of operation i, null for deletes and gets
+     */
+    public TupleBatch getTuples(int i) {
+        return tuples[i];
+    }
+
+    public int getRow(int i) {
+        return rows[i];
+    }
+}
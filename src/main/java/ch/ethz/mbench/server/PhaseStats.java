@@ -0,0 +1,64 @@
+package ch.ethz.mbench.server;
+
+/**
+ * Time requests spend in every phase of their life, one set of histograms per command type.
+ * Each reactor records the requests it answers, snapshots are merged on demand like LatencyStats.
+ */
+public class PhaseStats {
+
+    // decoded until handed to the executor, waiting behind earlier requests of the same client
+    public static final int PENDING = 0;
+    // waiting in the executor queue
+    public static final int QUEUE = 1;
+    // planning the operations and generating tuples
+    public static final int GENERATION = 2;
+    // backend calls before the commit
+    public static final int EXECUTION = 3;
+    public static final int COMMIT = 4;
+    // until the reactor noticed the result and handed the response to the socket
+    public static final int RESPONSE = 5;
+    // decoded until the response was written
+    public static final int TOTAL = 6;
+    public static final int NUM_PHASES = 7;
+
+    public static final int NUM_TYPES = ServerCmd.ServerCmdType.values().length;
+
+    private static final String[] NAMES = {"pending", "queue", "generation", "execution", "commit", "response", "total"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[NUM_TYPES * NUM_PHASES];
+
+    public PhaseStats() {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Records the phases of a request whose response was just written. Phases a request did not
+     * go through take no time.
+     */
+    public void record(ServerCmd cmd) {
+        int base = cmd.getType().ordinal() * NUM_PHASES;
+        long prev = cmd.getStamp(ServerCmd.DECODED);
+        for (int phase = PENDING; phase <= RESPONSE; phase++) {
+            long stamp = cmd.getStamp(phase + 1);
+            if (stamp == 0)
+                stamp = prev;
+            histograms[base + phase].record(stamp - prev);
+            prev = stamp;
+        }
+        histograms[base + TOTAL].record(prev - cmd.getStamp(ServerCmd.DECODED));
+    }
+
+    public void add(PhaseStats other) {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i].add(other.histograms[i]);
+    }
+
+    public LatencyHistogram get(int type, int phase) {
+        return histograms[type * NUM_PHASES + phase];
+    }
+
+    public static String getName(int phase) {
+        return NAMES[phase];
+    }
+}
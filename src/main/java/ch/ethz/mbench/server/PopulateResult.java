@@ -0,0 +1,67 @@
+package ch.ethz.mbench.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Merged outcome of a POPULATE that ran as several shards, reused across requests
+ */
+public class PopulateResult {
+
+    private long sucRows;
+    private double rowsPerSec;
+    private int nShards;
+    // backend time of every shard in nanoseconds
+    private long[] shardTimes = new long[0];
+
+    public void set(long sucRows, double rowsPerSec, int nShards) {
+        this.sucRows = sucRows;
+        this.rowsPerSec = rowsPerSec;
+        setNumShards(nShards);
+    }
+
+    public void setNumShards(int nShards) {
+        this.nShards = nShards;
+        if (shardTimes.length < nShards)
+            shardTimes = new long[nShards];
+    }
+
+    public void setShardTime(int shard, long time) {
+        shardTimes[shard] = time;
+    }
+
+    public void decode(ByteBuffer bb) {
+        sucRows = bb.getLong();
+        rowsPerSec = bb.getDouble();
+        setNumShards(bb.getInt());
+        for (int i = 0; i < nShards; i++)
+            shardTimes[i] = bb.getLong();
+    }
+
+    public void encode(ByteBuffer bb) {
+        bb.putLong(sucRows);
+        bb.putDouble(rowsPerSec);
+        bb.putInt(nShards);
+        for (int i = 0; i < nShards; i++)
+            bb.putLong(shardTimes[i]);
+    }
+
+    public int getEncodedSize() {
+        return 8 + 8 + 4 + 8 * nShards;
+    }
+
+    public long getSucRows() {
+        return sucRows;
+    }
+
+    public double getRowsPerSec() {
+        return rowsPerSec;
+    }
+
+    public int getNumShards() {
+        return nShards;
+    }
+
+    public long getShardTime(int shard) {
+        return shardTimes[shard];
+    }
+}
@@ -0,0 +1,136 @@
+package ch.ethz.mbench.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector thread owning a disjoint set of client sessions
+ */
+public class Reactor implements Runnable {
+
+    private final MbServer server;
+    private final int reactorId;
+    private final Selector selector;
+    // only accessed from the reactor thread
+    private final Map<SelectionKey, ClientSession> clientMap = new HashMap<>();
+    // channels handed over by the acceptor
+    private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    // commands whose response has been filled in by service threads
+    private final Queue<ServerCmd> completed = new ConcurrentLinkedQueue<>();
+    // sessions assigned to this reactor, including the ones not registered yet
+    private final AtomicInteger nSessions = new AtomicInteger();
+    // phases of the requests answered by this reactor, only written by its thread
+    private final PhaseStats phaseStats = new PhaseStats();
+
+    public Reactor(MbServer server, int reactorId) throws IOException {
+        this.server = server;
+        this.reactorId = reactorId;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a newly accepted channel over to this reactor
+     */
+    public void register(SocketChannel channel) {
+        nSessions.incrementAndGet();
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a finished command back to this reactor, called from service threads
+     */
+    public void complete(ServerCmd cmd) {
+        completed.add(cmd);
+        selector.wakeup();
+    }
+
+    public void remove(SelectionKey key) {
+        ClientSession session = clientMap.remove(key);
+        if (session != null) {
+            nSessions.decrementAndGet();
+            server.removeSession(session);
+        }
+    }
+
+    public PhaseStats getPhaseStats() {
+        return phaseStats;
+    }
+
+    public int getNumSessions() {
+        return nSessions.get();
+    }
+
+    public int getReactorId() {
+        return reactorId;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true)
+                loop();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private void loop() throws IOException {
+        // block until there is I/O, a new client or a finished response
+        selector.select();
+        for (SelectionKey key : selector.selectedKeys()) {
+            if (!key.isValid())
+                continue;
+            ClientSession clieSession = clientMap.get(key);
+            if (clieSession == null) {
+                continue;
+            }
+            if (key.isWritable()) {
+                clieSession.flush();
+                // the client drained its responses, it may be read from again
+                if (!clieSession.isClosed())
+                    server.processRequest(clieSession);
+            }
+            if (key.isValid() && key.isReadable()) {
+                server.processRequest(clieSession);
+            }
+        }
+        selector.selectedKeys().clear();
+
+        // register clients assigned by the acceptor
+        SocketChannel acceptedChannel;
+        while ((acceptedChannel = accepted.poll()) != null) {
+            try {
+                acceptedChannel.configureBlocking(false);
+                SelectionKey readKey = acceptedChannel.register(selector, SelectionKey.OP_READ);
+                ClientSession session = new ClientSession(readKey, acceptedChannel, MbServer.nextSessionId.incrementAndGet(),
+                        this, server.getMaxInFlight());
+                clientMap.put(readKey, session);
+                server.addSession(session);
+                long nClients = MbServer.numClients.incrementAndGet();
+                MbServer.Log.info("New client ip=" + acceptedChannel.getRemoteAddress() + ", reactor=" + reactorId
+                        + ", nClients=" + nClients);
+            } catch (ClosedChannelException e) {
+                nSessions.decrementAndGet();
+            }
+        }
+
+        // send results of processed requests
+        ServerCmd cmd;
+        while ((cmd = completed.poll()) != null) {
+            ClientSession clieSession = cmd.getResponse().getClientSession();
+            clieSession.writeResponse(cmd);
+            // a response frees a slot, dispatch whatever was waiting for it
+            if (!clieSession.isClosed())
+                server.processRequest(clieSession);
+        }
+    }
+}
@@ -1,23 +1,186 @@
 package ch.ethz.mbench.server;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
- * Handles response messages to be sent to clients
+ * Handles response messages to be sent to clients.
+ * A response belongs to the command it answers and is reused together with it.
  */
 public class Response {
 
-    private Object[] results;
+    private static final byte[] NO_MSG = new byte[0];
+
+    private ServerCmd.ServerCmdType type;
+    private long requestId = ServerCmd.NO_REQUEST_ID;
+    private boolean success;
+    private String errorMsg = "";
+    private byte[] errorMsgBytes = NO_MSG;
+    private long responseTime;
+    private final BatchOpResult batchOp = new BatchOpResult();
+    private final PopulateResult populate = new PopulateResult();
+    private final LatencyResult latency = new LatencyResult();
+    private final StatsResult stats = new StatsResult();
     private ClientSession clientSession;
 
-    public Response(Object...results) {
-        this.results = results;
+    /**
+     * Prepares the response for a new request. A BATCH_OP starts out echoing the keys it was sent,
+     * so that a batch failing before it ran does not hand the client keys of an earlier request.
+     */
+    public void reset(ServerCmd cmd) {
+        this.type = cmd.getType();
+        this.requestId = cmd.getRequestId();
+        this.success = false;
+        this.errorMsg = "";
+        this.errorMsgBytes = NO_MSG;
+        this.responseTime = 0;
+        this.populate.set(0, 0, 0);
+        this.batchOp.set(cmd.getBatchOp().getBaseInsKey(), cmd.getBatchOp().getBaseDelKey());
+    }
+
+    public void setResult(boolean success, String errorMsg, long responseTime) {
+        this.success = success;
+        setErrorMsg(errorMsg);
+        this.responseTime = responseTime;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public void setErrorMsg(String errorMsg) {
+        if (errorMsg.equals(this.errorMsg))
+            return;
+        this.errorMsg = errorMsg;
+        this.errorMsgBytes = errorMsg.isEmpty() ? NO_MSG : errorMsg.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void setResponseTime(long responseTime) {
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Number of bytes of the encoded response including the size header
+     */
+    public int getEncodedSize() {
+        int size = 8 + 1 + 4 + errorMsgBytes.length;
+        if (isPipelined())
+            size += 8;
+        switch (type) {
+            case CREATE_SCHEMA:
+                break;
+            case BATCH_OP:
+                size += batchOp.getEncodedSize() + 8;
+                break;
+            case POPULATE:
+                size += 8 + populate.getEncodedSize();
+                break;
+            case LATENCY:
+                size += latency.getEncodedSize();
+                break;
+            case STATS:
+                size += stats.getEncodedSize();
+                break;
+            default:
+                size += 8;
+                break;
+        }
+        return size;
+    }
+
+    public void encode(ByteBuffer bb) {
+        bb.putLong(getEncodedSize());
+        if (isPipelined())
+            bb.putLong(requestId);
+        bb.put((byte) (success ? 1 : 0));
+        bb.putInt(errorMsgBytes.length);
+        bb.put(errorMsgBytes);
+        switch (type) {
+            case CREATE_SCHEMA:
+                break;
+            case BATCH_OP:
+                batchOp.encode(bb);
+                bb.putLong(responseTime);
+                break;
+            case POPULATE:
+                bb.putLong(responseTime);
+                populate.encode(bb);
+                break;
+            case LATENCY:
+                latency.encode(bb);
+                break;
+            case STATS:
+                stats.encode(bb);
+                break;
+            default:
+                bb.putLong(responseTime);
+                break;
+        }
+    }
+
+    /**
+     * Decodes a response frame positioned right after its size header and request id
+     */
+    public void decode(ServerCmd.ServerCmdType type, ByteBuffer bb) {
+        this.type = type;
+        success = bb.get() == 1;
+        byte[] msg = new byte[bb.getInt()];
+        bb.get(msg);
+        errorMsgBytes = msg;
+        errorMsg = new String(msg, StandardCharsets.UTF_8);
+        switch (type) {
+            case CREATE_SCHEMA:
+                break;
+            case BATCH_OP:
+                batchOp.decode(bb);
+                responseTime = bb.getLong();
+                break;
+            case POPULATE:
+                responseTime = bb.getLong();
+                populate.decode(bb);
+                break;
+            case LATENCY:
+                latency.decode(bb);
+                break;
+            case STATS:
+                stats.decode(bb);
+                break;
+            default:
+                responseTime = bb.getLong();
+                break;
+        }
     }
 
-    public void setResult(Object result, int i) {
-        results[i] = result;
+    public ServerCmd.ServerCmdType getType() {
+        return type;
     }
 
-    public Object[] getResults() {
-        return results;
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getErrorMsg() {
+        return errorMsg;
+    }
+
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    public BatchOpResult getBatchOp() {
+        return batchOp;
+    }
+
+    public PopulateResult getPopulate() {
+        return populate;
+    }
+
+    public LatencyResult getLatency() {
+        return latency;
+    }
+
+    public StatsResult getStats() {
+        return stats;
     }
 
     public void setClientSession(ClientSession clientSession) {
@@ -27,4 +190,12 @@ public class Response {
     public ClientSession getClientSession() {
         return clientSession;
     }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public boolean isPipelined() {
+        return requestId != ServerCmd.NO_REQUEST_ID;
+    }
 }
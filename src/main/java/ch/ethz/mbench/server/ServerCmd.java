@@ -1,24 +1,27 @@
 package ch.ethz.mbench.server;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Handles clients' encoded commands.
+ * Commands are decoded in place into instances owned by a client session, so the same
+ * object (and its response) is reused for many requests.
  */
 public class ServerCmd {
 
     public enum ServerCmdType {
-        CREATE_SCHEMA(0), POPULATE(1), BATCH_OP(2), Q1(3), Q2(4), Q3(5), DISCONNECT(6);
+        CREATE_SCHEMA(0), POPULATE(1), BATCH_OP(2), Q1(3), Q2(4), Q3(5), DISCONNECT(6), LATENCY(7), STATS(8);
         short val;
 
         ServerCmdType(int v) {
             this.val = (short) v;
         }
 
+        private static final ServerCmdType[] VALUES = values();
+
         public static ServerCmdType fromInt(int v) {
-            return ServerCmdType.values()[v - 1]; // CAUTION: this only works because numbers are consecutive
+            return VALUES[v - 1]; // CAUTION: this only works because numbers are consecutive
         }
         public int getVal() {
             return val + 1;
@@ -26,112 +29,244 @@ public class ServerCmd {
     }
 
     private ServerCmdType type;
-    private Object args[];
+    // correlation id echoed in the response, only present in pipelined commands
+    private long requestId = NO_REQUEST_ID;
+    // CREATE_SCHEMA
+    private int schemaArg;
+    // POPULATE: startKey (included), endKey (excluded)
+    private long populateStart;
+    private long populateEnd;
+    // STATS: leave the session's rate window where it is, for requests only after the configuration
+    private boolean keepStatsWindow;
+    // BATCH_OP
+    private final BatchOpCmd batchOp = new BatchOpCmd();
+    private final Response response = new Response();
+    // set by the server the first time the command is dispatched
+    Runnable task;
+    // server side timestamps of the request phases in nanoseconds, 0 if a phase was skipped
+    private final long[] stamps = new long[NUM_STAMPS];
+
     public static int CMD_SIZE = 128;
+    // frame size header plus command type
+    public static final int MIN_CMD_SIZE = 12;
+    public static final int MAX_CMD_SIZE = 1 << 20;
+    // set in the command type of pipelined commands, which carry a request id after the type
+    public static final int PIPELINED_FLAG = 0x100;
+    public static final long NO_REQUEST_ID = -1;
+
+    // request phases, see PhaseStats
+    public static final int DECODED = 0;
+    public static final int DISPATCHED = 1;
+    public static final int STARTED = 2;
+    public static final int GENERATED = 3;
+    public static final int EXECUTED = 4;
+    public static final int COMMITTED = 5;
+    public static final int WRITTEN = 6;
+    public static final int NUM_STAMPS = 7;
+
+    public ServerCmd() {
+    }
 
-    public ServerCmd(ServerCmdType t, Object a[]) {
+    public ServerCmd(ServerCmdType t) {
         this.type = t;
-        this.args = a;
-    }
-
-    public static long getResultBufferSize(Object... args) throws IOException {
-        long result = 8;    // 8 bytes for encoding the total size
-        for (Object o : args) {
-            if (o instanceof Boolean || o instanceof Byte) {
-                result += 1;
-            } else if (o instanceof Short) {
-                result += 2;
-            } else if (o instanceof Integer || o instanceof Float) {
-                result += 4;
-            } else if (o instanceof Long || o instanceof Double) {
-                result += 8;
-            } else if (o instanceof String) {
-                result += 4;    // encode string length
-                result += (((String) o).getBytes("UTF-8").length);
-            } else {
-                throw new RuntimeException("no known object serialization method for object " + o.toString());
-            }
+    }
+
+    public static ServerCmd createSchema(int scalingFactor) {
+        ServerCmd cmd = new ServerCmd(ServerCmdType.CREATE_SCHEMA);
+        cmd.schemaArg = scalingFactor;
+        return cmd;
+    }
+
+    public static ServerCmd populate(long start, long end) {
+        ServerCmd cmd = new ServerCmd(ServerCmdType.POPULATE);
+        cmd.setPopulate(start, end);
+        return cmd;
+    }
+
+    public static ServerCmd batchOp(int nOps, double iProb, double dProb, double uProb, int clientId, long nClients,
+                                    long baseInsKey, long baseDelKey) {
+        ServerCmd cmd = new ServerCmd(ServerCmdType.BATCH_OP);
+        cmd.batchOp.set(nOps, iProb, dProb, uProb, clientId, nClients, baseInsKey, baseDelKey);
+        return cmd;
+    }
+
+    public static ServerCmd batchOp(int nOps, double iProb, double dProb, double uProb, int clientId, long nClients,
+                                    long baseInsKey, long baseDelKey, byte keyDist, double distParam1, double distParam2) {
+        ServerCmd cmd = batchOp(nOps, iProb, dProb, uProb, clientId, nClients, baseInsKey, baseDelKey);
+        cmd.batchOp.setKeyDist(keyDist, distParam1, distParam2);
+        return cmd;
+    }
+
+    /**
+     * STATS request, keepWindow reports rates without starting a new rate window for the session
+     */
+    public static ServerCmd stats(boolean keepWindow) {
+        ServerCmd cmd = new ServerCmd(ServerCmdType.STATS);
+        cmd.keepStatsWindow = keepWindow;
+        return cmd;
+    }
+
+    public ServerCmd copy() {
+        ServerCmd cmd = new ServerCmd(type);
+        cmd.requestId = requestId;
+        cmd.schemaArg = schemaArg;
+        cmd.populateStart = populateStart;
+        cmd.populateEnd = populateEnd;
+        cmd.keepStatsWindow = keepStatsWindow;
+        cmd.batchOp.copyFrom(batchOp);
+        return cmd;
+    }
+
+    /**
+     * Number of bytes of the encoded command including the size header
+     */
+    public int getEncodedSize() {
+        int size = MIN_CMD_SIZE;
+        if (isPipelined())
+            size += 8;
+        switch (type) {
+            case CREATE_SCHEMA:
+                size += 4;
+                break;
+            case POPULATE:
+                size += 2 * 8;
+                break;
+            case BATCH_OP:
+                size += batchOp.getEncodedSize();
+                break;
+            case STATS:
+                size += 1;
+                break;
+            default:
+                break;
         }
-        return result;
+        return size;
     }
 
-    public static ServerCmd decodeCmd(ByteBuffer bb) {
-        Object[] resultArr = null;
-        bb.getLong();   // total buffer size, currently not used
-        ServerCmdType resultType = ServerCmdType.fromInt(bb.getInt());
-        switch (resultType) {
+    /**
+     * Decodes a whole frame, including its size header, into this command
+     */
+    public void decode(ByteBuffer bb) {
+        Arrays.fill(stamps, 0);
+        stamps[DECODED] = System.nanoTime();
+        bb.getLong();   // total buffer size, already checked by the session framing
+        int encodedType = bb.getInt();
+        type = ServerCmdType.fromInt(encodedType & ~PIPELINED_FLAG);
+        requestId = NO_REQUEST_ID;
+        if ((encodedType & PIPELINED_FLAG) != 0)
+            requestId = bb.getLong();
+        switch (type) {
             case CREATE_SCHEMA:
-                resultArr = new Object[]{bb.getInt()};  // scaling factor
+                schemaArg = bb.getInt();  // scaling factor
                 break;
             case POPULATE:
-                resultArr = new Object[]{bb.getLong(), bb.getLong()};   // startKey (included), endKey (excluded) to populate
-                //System.out.println("cmd =>" + scm.args[0] + " "+scm.args[1]);
+                populateStart = bb.getLong();
+                populateEnd = bb.getLong();
                 break;
             case BATCH_OP:
-                resultArr = new Object[]{
-                        bb.getInt(),    // 0: number of Ops
-                        bb.getDouble(), // 1: insertion probability
-                        bb.getDouble(), // 2: deletion probability
-                        bb.getDouble(), // 3: update probability
-                        bb.getInt(),    // 4: client-id
-                        bb.getLong(),   // 5: number of clients
-                        bb.getLong(),   // 6: base insert key
-                        bb.getLong(),   // 7: base delete key
-                };
+                batchOp.decode(bb);
+                break;
+            case STATS:
+                // older clients do not send the flag
+                keepStatsWindow = bb.remaining() >= 1 && bb.get() != 0;
                 break;
             case Q1:
             case Q2:
             case Q3:
-                resultArr = new Object[]{};
-                break;
             case DISCONNECT:
+            case LATENCY:
                 break;
         }
-        return new ServerCmd(resultType, resultArr);
-    }
-
-    public static ByteBuffer encodeServerCmd(ServerCmd cmd) throws IOException {
-        // cmdSize = cmdType + cmdArgs
-        long cmdSz = getResultBufferSize(cmd.args);
-        ByteBuffer bb = ByteBuffer.allocate((int)cmdSz);
-        bb.order(ByteOrder.nativeOrder());
-        bb.clear();
-        bb.putLong(cmdSz);
-        // setting type offset
-        for (Object o: cmd.args) {
-            if (o instanceof Boolean) {
-                Boolean b = (Boolean) o;
-                bb.put((byte)(b ? 1 : 0));
-            } else if (o instanceof Byte) {
-                bb.put((Byte) o);
-            } else if (o instanceof Short) {
-                bb.putShort((Short) o);
-            } else if (o instanceof Integer) {
-                bb.putInt((Integer) o);
-            } else if (o instanceof Float) {
-                bb.putFloat((Float) o);
-            } else if (o instanceof Long) {
-                bb.putLong((Long) o);
-            } else if (o instanceof Double) {
-                bb.putDouble((Double) o);
-            } else if (o instanceof String) {
-                byte[] utf8Arr = ((String) o).getBytes("UTF-8");
-                bb.putInt(utf8Arr.length);
-                bb.put(utf8Arr);
-            } else {
-                throw new RuntimeException("Not able to serialize type " + o.getClass().getSimpleName());
-            }
+    }
+
+    public void encode(ByteBuffer bb) {
+        bb.putLong(getEncodedSize());
+        if (isPipelined()) {
+            bb.putInt(type.getVal() | PIPELINED_FLAG);
+            bb.putLong(requestId);
+        } else {
+            bb.putInt(type.getVal());
+        }
+        switch (type) {
+            case CREATE_SCHEMA:
+                bb.putInt(schemaArg);
+                break;
+            case POPULATE:
+                bb.putLong(populateStart);
+                bb.putLong(populateEnd);
+                break;
+            case BATCH_OP:
+                batchOp.encode(bb);
+                break;
+            case STATS:
+                bb.put((byte) (keepStatsWindow ? 1 : 0));
+                break;
+            default:
+                break;
         }
+    }
+
+    /**
+     * Encodes the command into a buffer taken from the shared pool, the caller has to release it
+     */
+    public static ByteBuffer encodeServerCmd(ServerCmd cmd) {
+        ByteBuffer bb = BufferPool.SHARED.acquire(cmd.getEncodedSize());
+        cmd.encode(bb);
         bb.flip();
         return bb;
     }
 
+    public void stamp(int phase) {
+        stamps[phase] = System.nanoTime();
+    }
+
+    public long getStamp(int phase) {
+        return stamps[phase];
+    }
+
     public ServerCmdType getType() {
         return type;
     }
 
-    public Object[] getArgs() {
-        return args;
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    public boolean isPipelined() {
+        return requestId != NO_REQUEST_ID;
+    }
+
+    public int getSchemaArg() {
+        return schemaArg;
+    }
+
+    public void setPopulate(long start, long end) {
+        this.populateStart = start;
+        this.populateEnd = end;
+    }
+
+    public long getPopulateStart() {
+        return populateStart;
+    }
+
+    public long getPopulateEnd() {
+        return populateEnd;
+    }
+
+    public boolean isKeepStatsWindow() {
+        return keepStatsWindow;
+    }
+
+    public BatchOpCmd getBatchOp() {
+        return batchOp;
+    }
+
+    public Response getResponse() {
+        return response;
     }
 
 }
@@ -0,0 +1,54 @@
+package ch.ethz.mbench.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue between exactly one producer thread and one consumer thread.
+ * Only the producer calls offer and only the consumer calls poll, so no locks are needed.
+ */
+public class SpscRing<T> {
+
+    private final Object[] slots;
+    private final int mask;
+    // next slot to read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    public SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Returns false if the ring is full
+     */
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - head.get() == slots.length)
+            return false;
+        slots[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Returns null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        int idx = (int) h & mask;
+        T item = (T) slots[idx];
+        slots[idx] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
@@ -0,0 +1,206 @@
+package ch.ethz.mbench.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Live server counters returned by a STATS command. Rates cover the time since the previous STATS
+ * request of the same session (or since the server started), the other counters are current values or totals.
+ */
+public class StatsResult {
+
+    // server configuration, so that reports can tell runs apart
+    private byte[] backend = new byte[0];
+    private int nCols;
+    private int scaleFactor;
+    private long intervalNanos;
+    private final long[] opCounts = new long[LatencyStats.NUM_OPS];
+    private final double[] opsPerSec = new double[LatencyStats.NUM_OPS];
+    private final long[] opErrors = new long[LatencyStats.NUM_OPS];
+    private final LatencyResult latency = new LatencyResult();
+    // commands waiting for a service thread, service threads busy and commands without response
+    private int queueDepth;
+    private int activeThreads;
+    private int inFlight;
+    // requests that ended with an exception
+    private long failedRequests;
+    private long poolCheckedOut;
+    private long poolAllocated;
+    // per client session: id, bytes received, bytes sent, commands in flight
+    private int nSessions;
+    private long[] sessionIds = new long[0];
+    private long[] sessionBytesIn = new long[0];
+    private long[] sessionBytesOut = new long[0];
+    private int[] sessionInFlight = new int[0];
+
+    public void setServer(String backend, int nCols, int scaleFactor) {
+        if (!backend.equals(getBackend()))
+            this.backend = backend.getBytes(StandardCharsets.UTF_8);
+        this.nCols = nCols;
+        this.scaleFactor = scaleFactor;
+    }
+
+    public void setOps(long intervalNanos, LatencyStats stats, PhaseStats phases, long[] previousCounts) {
+        this.intervalNanos = intervalNanos;
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++) {
+            opCounts[op] = stats.get(op).getCount();
+            opErrors[op] = stats.getErrors(op);
+            opsPerSec[op] = intervalNanos == 0 ? 0 : (opCounts[op] - previousCounts[op]) * 1e9 / intervalNanos;
+        }
+        latency.set(stats, phases);
+    }
+
+    public void setExecutor(int queueDepth, int activeThreads, long failedRequests) {
+        this.queueDepth = queueDepth;
+        this.activeThreads = activeThreads;
+        this.failedRequests = failedRequests;
+    }
+
+    public void setBufferPool(BufferPool pool) {
+        poolCheckedOut = pool.getCheckedOut();
+        poolAllocated = pool.getAllocated();
+    }
+
+    public void setNumSessions(int nSessions) {
+        this.nSessions = nSessions;
+        this.inFlight = 0;
+        if (sessionIds.length < nSessions) {
+            sessionIds = new long[nSessions];
+            sessionBytesIn = new long[nSessions];
+            sessionBytesOut = new long[nSessions];
+            sessionInFlight = new int[nSessions];
+        }
+    }
+
+    public void setSession(int i, long clientId, long bytesIn, long bytesOut, int inFlight) {
+        sessionIds[i] = clientId;
+        sessionBytesIn[i] = bytesIn;
+        sessionBytesOut[i] = bytesOut;
+        sessionInFlight[i] = inFlight;
+        this.inFlight += inFlight;
+    }
+
+    public void decode(ByteBuffer bb) {
+        backend = new byte[bb.getInt()];
+        bb.get(backend);
+        nCols = bb.getInt();
+        scaleFactor = bb.getInt();
+        intervalNanos = bb.getLong();
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++) {
+            opCounts[op] = bb.getLong();
+            opsPerSec[op] = bb.getDouble();
+            opErrors[op] = bb.getLong();
+        }
+        latency.decode(bb);
+        queueDepth = bb.getInt();
+        activeThreads = bb.getInt();
+        failedRequests = bb.getLong();
+        poolCheckedOut = bb.getLong();
+        poolAllocated = bb.getLong();
+        setNumSessions(bb.getInt());
+        for (int i = 0; i < nSessions; i++)
+            setSession(i, bb.getLong(), bb.getLong(), bb.getLong(), bb.getInt());
+    }
+
+    public void encode(ByteBuffer bb) {
+        bb.putInt(backend.length);
+        bb.put(backend);
+        bb.putInt(nCols);
+        bb.putInt(scaleFactor);
+        bb.putLong(intervalNanos);
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++) {
+            bb.putLong(opCounts[op]);
+            bb.putDouble(opsPerSec[op]);
+            bb.putLong(opErrors[op]);
+        }
+        latency.encode(bb);
+        bb.putInt(queueDepth);
+        bb.putInt(activeThreads);
+        bb.putLong(failedRequests);
+        bb.putLong(poolCheckedOut);
+        bb.putLong(poolAllocated);
+        bb.putInt(nSessions);
+        for (int i = 0; i < nSessions; i++) {
+            bb.putLong(sessionIds[i]);
+            bb.putLong(sessionBytesIn[i]);
+            bb.putLong(sessionBytesOut[i]);
+            bb.putInt(sessionInFlight[i]);
+        }
+    }
+
+    public int getEncodedSize() {
+        return 4 + backend.length + 4 + 4 + 8 + LatencyStats.NUM_OPS * 3 * 8 + latency.getEncodedSize() + 4 + 4 + 3 * 8 + 4 + nSessions * (3 * 8 + 4);
+    }
+
+    public String getBackend() {
+        return new String(backend, StandardCharsets.UTF_8);
+    }
+
+    public int getNCols() {
+        return nCols;
+    }
+
+    public int getScaleFactor() {
+        return scaleFactor;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    public long getOpCount(int op) {
+        return opCounts[op];
+    }
+
+    public double getOpsPerSec(int op) {
+        return opsPerSec[op];
+    }
+
+    public long getOpErrors(int op) {
+        return opErrors[op];
+    }
+
+    public LatencyResult getLatency() {
+        return latency;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getActiveThreads() {
+        return activeThreads;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public long getFailedRequests() {
+        return failedRequests;
+    }
+
+    public int getNumSessions() {
+        return nSessions;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("backend=%s nCols=%d scaleFactor=%d%n", getBackend(), nCols, scaleFactor));
+        sb.append(String.format("interval=%.3fs queue=%d active=%d inFlight=%d failed=%d buffers=%d/%d%n",
+                intervalNanos / 1e9, queueDepth, activeThreads, inFlight, failedRequests, poolCheckedOut, poolAllocated));
+        for (int op = 0; op < LatencyStats.NUM_OPS; op++) {
+            if (opCounts[op] == 0)
+                continue;
+            sb.append(String.format("%-7s n=%d ops/s=%.1f errors=%d%n", LatencyStats.getName(op), opCounts[op],
+                    opsPerSec[op], opErrors[op]));
+        }
+        sb.append(latency);
+        for (int i = 0; i < nSessions; i++) {
+            sb.append(String.format("client %d in=%d out=%d inFlight=%d%n", sessionIds[i], sessionBytesIn[i],
+                    sessionBytesOut[i], sessionInFlight[i]));
+        }
+        return sb.toString();
+    }
+}
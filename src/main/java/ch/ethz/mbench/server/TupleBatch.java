@@ -0,0 +1,332 @@
+package ch.ethz.mbench.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Batch of keyed rows stored column-wise in primitive arrays.
+ * The type of a column depends on its position modulo 10: A0 and A7 are doubles, A1 and A2 ints,
+ * A3 and A4 shorts, A5 and A6 longs and A8 and A9 strings. String values live in a byte arena
+ * shared by all string columns. A batch is meant to be cleared and refilled, not reallocated.
+ */
+public class TupleBatch {
+
+    public static final int TYPE_DOUBLE = 0;
+    public static final int TYPE_INT = 1;
+    public static final int TYPE_SHORT = 2;
+    public static final int TYPE_LONG = 3;
+    public static final int TYPE_STRING = 4;
+
+    // schema shared by every batch, column i is named after i % 10
+    private static final String[] COLUMN_NAMES = {"A0", "A1", "A2", "A3", "A4", "A5", "A6", "A7", "A8", "A9"};
+    private static final int[] COLUMN_TYPES = {TYPE_DOUBLE, TYPE_INT, TYPE_INT, TYPE_SHORT, TYPE_SHORT,
+            TYPE_LONG, TYPE_LONG, TYPE_DOUBLE, TYPE_STRING, TYPE_STRING};
+    public static final int MAX_COLS = 64;
+
+    private static final byte[][] SYLLABLES;
+    static {
+        String mSyllables[] = {"BAR", "OUGHT", "ABLE", "PRI", "PRES", "ESE", "ANTI", "CALLY", "ATION", "EING"};
+        SYLLABLES = new byte[mSyllables.length][];
+        for (int i = 0; i < mSyllables.length; i++)
+            SYLLABLES[i] = mSyllables[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private final int nCols;
+    private final int capacity;
+    private int size;
+    private final long[] keys;
+    // bit i is set if column i has a value in the row
+    private final long[] present;
+    private final double[][] doubleCols;
+    private final int[][] intCols;
+    private final short[][] shortCols;
+    private final long[][] longCols;
+    private final int[][] strOffsets;
+    private final int[][] strLengths;
+    private byte[] strArena;
+    private int arenaSize;
+
+    public TupleBatch(int nCols, int capacity) {
+        if (nCols > MAX_COLS)
+            throw new RuntimeException("Number of columns not supported!");
+        this.nCols = nCols;
+        this.capacity = capacity;
+        keys = new long[capacity];
+        present = new long[capacity];
+        doubleCols = new double[nCols][];
+        intCols = new int[nCols][];
+        shortCols = new short[nCols][];
+        longCols = new long[nCols][];
+        strOffsets = new int[nCols][];
+        strLengths = new int[nCols][];
+        for (int c = 0; c < nCols; c++) {
+            switch (columnType(c)) {
+                case TYPE_DOUBLE:
+                    doubleCols[c] = new double[capacity];
+                    break;
+                case TYPE_INT:
+                    intCols[c] = new int[capacity];
+                    break;
+                case TYPE_SHORT:
+                    shortCols[c] = new short[capacity];
+                    break;
+                case TYPE_LONG:
+                    longCols[c] = new long[capacity];
+                    break;
+                case TYPE_STRING:
+                    strOffsets[c] = new int[capacity];
+                    strLengths[c] = new int[capacity];
+                    break;
+            }
+        }
+        strArena = new byte[Math.max(64, capacity * 16)];
+    }
+
+    public static String columnName(int col) {
+        return COLUMN_NAMES[col % 10];
+    }
+
+    public static int columnType(int col) {
+        return COLUMN_TYPES[col % 10];
+    }
+
+    public void clear() {
+        size = 0;
+        arenaSize = 0;
+    }
+
+    /**
+     * Appends an empty row for the given key and returns its index
+     */
+    public int addRow(long key) {
+        if (size == capacity)
+            throw new IllegalStateException("TupleBatch is full");
+        keys[size] = key;
+        present[size] = 0;
+        return size++;
+    }
+
+    /**
+     * Appends a row with random values in every column
+     */
+    public int addInsert(long key) {
+        int row = addRow(key);
+        fillInsert(row);
+        return row;
+    }
+
+    /**
+     * Overwrites a row with random values in every column
+     */
+    public void fillInsert(int row) {
+        present[row] = 0;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int c = 0; c < nCols; c++) {
+            switch (c) {
+                case 0:
+                    setDouble(row, c, rnd.nextDouble(0.0, 1.0));
+                    break;
+                case 1:
+                    setInt(row, c, rnd.nextInt());
+                    break;
+                case 2:
+                    setInt(row, c, rnd.nextInt(0, 10000));
+                    break;
+                case 3:
+                    setShort(row, c, (short) rnd.nextInt(0, 2));
+                    break;
+                case 4:
+                    setShort(row, c, (short) rnd.nextInt(0, 256));
+                    break;
+                case 5:
+                    setLong(row, c, rnd.nextLong(Long.MIN_VALUE, 0));
+                    break;
+                case 6:
+                    setLong(row, c, rnd.nextLong(Long.MIN_VALUE, Long.MAX_VALUE));
+                    break;
+                case 7:
+                    setDouble(row, c, rnd.nextDouble(Double.MIN_VALUE, Double.MAX_VALUE));
+                    break;
+                case 8:
+                    setRandomString(row, c, 2, rnd);
+                    break;
+                case 9:
+                    setRandomString(row, c, 3, rnd);
+                    break;
+                default:
+                    throw new RuntimeException("Number of colums not supported!");
+            }
+        }
+    }
+
+    /**
+     * Appends a row with random values in one column of each type
+     */
+    public int addUpdate(long key) {
+        int row = addRow(key);
+        fillUpdate(row);
+        return row;
+    }
+
+    /**
+     * Overwrites a row with random values in one column of each type
+     */
+    public void fillUpdate(int row) {
+        present[row] = 0;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int offset = nCols == 10 ? 0 : rnd.nextInt(0, nCols / 10 - 1);
+        // double columns
+        if (rnd.nextInt(0, 10) <= 5)
+            setDouble(row, checkCol(offset), rnd.nextDouble());
+        else
+            setDouble(row, checkCol(offset + 7), rnd.nextDouble());
+        // int columns
+        if (rnd.nextInt(0, 10) <= 5)
+            setInt(row, checkCol(offset + 1), rnd.nextInt());
+        else
+            setInt(row, checkCol(offset + 2), rnd.nextInt(0, 10000));
+        // shorts
+        if (rnd.nextInt(0, 10) <= 5)
+            setShort(row, checkCol(offset + 3), (short) rnd.nextInt(0, 1));
+        else
+            setShort(row, checkCol(offset + 4), (short) rnd.nextInt(0, 255));
+        // longs
+        if (rnd.nextInt(0, 10) <= 5)
+            setLong(row, checkCol(offset + 5), rnd.nextLong(Long.MIN_VALUE, 0));
+        else
+            setLong(row, checkCol(offset + 6), rnd.nextLong(Long.MIN_VALUE, Long.MAX_VALUE));
+        // String
+        if (rnd.nextInt(0, 10) <= 5)
+            setRandomString(row, checkCol(offset + 8), 2, rnd);
+        else
+            setRandomString(row, checkCol(offset + 9), 3, rnd);
+    }
+
+    private int checkCol(int col) {
+        if (col >= nCols)
+            throw new RuntimeException("Invalid position for record field");
+        return col;
+    }
+
+    public void setDouble(int row, int col, double value) {
+        doubleCols[col][row] = value;
+        present[row] |= 1L << col;
+    }
+
+    public void setInt(int row, int col, int value) {
+        intCols[col][row] = value;
+        present[row] |= 1L << col;
+    }
+
+    public void setShort(int row, int col, short value) {
+        shortCols[col][row] = value;
+        present[row] |= 1L << col;
+    }
+
+    public void setLong(int row, int col, long value) {
+        longCols[col][row] = value;
+        present[row] |= 1L << col;
+    }
+
+    private void setRandomString(int row, int col, int nSyllable, ThreadLocalRandom rnd) {
+        int start = arenaSize;
+        while (nSyllable > 0) {
+            byte[] syllable = SYLLABLES[rnd.nextInt(0, SYLLABLES.length)];
+            ensureArena(syllable.length);
+            System.arraycopy(syllable, 0, strArena, arenaSize, syllable.length);
+            arenaSize += syllable.length;
+            nSyllable--;
+        }
+        strOffsets[col][row] = start;
+        strLengths[col][row] = arenaSize - start;
+        present[row] |= 1L << col;
+    }
+
+    private void ensureArena(int extra) {
+        if (arenaSize + extra > strArena.length)
+            strArena = Arrays.copyOf(strArena, Math.max(arenaSize + extra, 2 * strArena.length));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int getNumCols() {
+        return nCols;
+    }
+
+    public long getKey(int row) {
+        return keys[row];
+    }
+
+    /**
+     * Assigns the key of a row generated ahead of time
+     */
+    public void setKey(int row, long key) {
+        keys[row] = key;
+    }
+
+    public boolean isSet(int row, int col) {
+        return (present[row] & (1L << col)) != 0;
+    }
+
+    /**
+     * Bit mask of the columns set in the row
+     */
+    public long getColumnMask(int row) {
+        return present[row];
+    }
+
+    public double getDouble(int row, int col) {
+        return doubleCols[col][row];
+    }
+
+    public int getInt(int row, int col) {
+        return intCols[col][row];
+    }
+
+    public short getShort(int row, int col) {
+        return shortCols[col][row];
+    }
+
+    public long getLong(int row, int col) {
+        return longCols[col][row];
+    }
+
+    public String getString(int row, int col) {
+        return new String(strArena, strOffsets[col][row], strLengths[col][row], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Copy of the (ASCII, hence also UTF-8) bytes of a string value
+     */
+    public byte[] getStringBytes(int row, int col) {
+        int offset = strOffsets[col][row];
+        return Arrays.copyOfRange(strArena, offset, offset + strLengths[col][row]);
+    }
+
+    /**
+     * Boxed value of a column, only meant for APIs that cannot take primitives
+     */
+    public Object getValue(int row, int col) {
+        if (!isSet(row, col))
+            return null;
+        switch (columnType(col)) {
+            case TYPE_DOUBLE:
+                return getDouble(row, col);
+            case TYPE_INT:
+                return getInt(row, col);
+            case TYPE_SHORT:
+                return getShort(row, col);
+            case TYPE_LONG:
+                return getLong(row, col);
+            default:
+                return getString(row, col);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ch.ethz.mbench.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates tuples and operation dice for upcoming batches off the clock.
+ * Every service thread has a channel fed by one generator thread; prepared batches travel to the
+ * service thread through a ring of full batches and come back through a ring of used ones.
+ * A generator with nothing to fill parks until a service thread hands a batch back or asks for a
+ * new operation mix, so an idle server does not spin.
+ */
+public class WorkloadGenerator implements Runnable {
+
+    // prepared batches waiting in every channel
+    public static final int CHANNEL_DEPTH = 4;
+
+    private final Channel[] channels;
+
+    public WorkloadGenerator(Channel[] channels) {
+        this.channels = channels;
+    }
+
+    @Override
+    public void run() {
+        for (Channel channel : channels)
+            channel.generator = Thread.currentThread();
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean idle = true;
+            for (Channel channel : channels) {
+                // nothing is prepared before the first request tells which rows it needs
+                if (!channel.hasOpMix)
+                    continue;
+                PreparedBatch batch = channel.free.poll();
+                if (batch == null && channel.allocated < CHANNEL_DEPTH) {
+                    batch = new PreparedBatch(channel.nCols, channel.batchSize);
+                    channel.allocated++;
+                }
+                if (batch == null)
+                    continue;
+                batch.fill(channel.insertProb, channel.updateProb);
+                channel.full.offer(batch);
+                idle = false;
+            }
+            // a wakeup arriving since the channels were polled makes park return right away
+            if (idle)
+                LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Dice and rows for up to batchSize operations, keys are assigned when the batch is planned
+     * because they depend on the client's key range. The dice of a slot decide which row is
+     * generated for it, following the operation mix the service thread last asked for. A batch is
+     * consumed slot by slot through a cursor, so it can serve several small requests or part of a
+     * large one.
+     */
+    public static class PreparedBatch {
+        private static final byte NO_ROW = -1;
+
+        private final TupleBatch rows;
+        private final double[] dice;
+        // OpPlan.INSERT, OpPlan.UPDATE or NO_ROW, by slot
+        private final byte[] kinds;
+        // next slot to hand out, only touched by the service thread
+        private int position;
+
+        public PreparedBatch(int nCols, int batchSize) {
+            rows = new TupleBatch(nCols, batchSize);
+            dice = new double[batchSize];
+            kinds = new byte[batchSize];
+        }
+
+        private void fill(double insertProb, double updateProb) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            rows.clear();
+            position = 0;
+            for (int i = 0; i < dice.length; i++) {
+                double d = rnd.nextDouble();
+                dice[i] = d;
+                if (d < insertProb) {
+                    rows.addInsert(0);
+                    kinds[i] = OpPlan.INSERT;
+                } else if (d < insertProb + updateProb) {
+                    rows.addUpdate(0);
+                    kinds[i] = OpPlan.UPDATE;
+                } else {
+                    rows.addRow(0);
+                    kinds[i] = NO_ROW;
+                }
+            }
+        }
+
+        /**
+         * Moves the cursor to the next slot and returns it, -1 if every slot has been handed out
+         */
+        public int nextSlot() {
+            return position < dice.length ? position++ : -1;
+        }
+
+        public double getDice(int slot) {
+            return dice[slot];
+        }
+
+        /**
+         * Row of the slot filled as an insert, generated now if the slot was prepared for another operation
+         */
+        public TupleBatch insertRow(int slot, long key) {
+            if (kinds[slot] != OpPlan.INSERT) {
+                rows.fillInsert(slot);
+                kinds[slot] = OpPlan.INSERT;
+            }
+            rows.setKey(slot, key);
+            return rows;
+        }
+
+        /**
+         * Row of the slot filled as an update, generated now if the slot was prepared for another operation
+         */
+        public TupleBatch updateRow(int slot, long key) {
+            if (kinds[slot] != OpPlan.UPDATE) {
+                rows.fillUpdate(slot);
+                kinds[slot] = OpPlan.UPDATE;
+            }
+            rows.setKey(slot, key);
+            return rows;
+        }
+    }
+
+    /**
+     * Pair of rings between one generator thread and one service thread
+     */
+    public static class Channel {
+        private final int nCols;
+        private final int batchSize;
+        private final SpscRing<PreparedBatch> full = new SpscRing<>(CHANNEL_DEPTH);
+        private final SpscRing<PreparedBatch> free = new SpscRing<>(CHANNEL_DEPTH);
+        // operation mix of the last request the service thread planned
+        private volatile double insertProb;
+        private volatile double updateProb;
+        private volatile boolean hasOpMix;
+        // thread filling the channel, woken whenever there is something to fill
+        private volatile Thread generator;
+        // only touched by the generator thread
+        private int allocated;
+
+        public Channel(int nCols, int batchSize) {
+            this.nCols = nCols;
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Called by the service thread, returns null if the generator is behind
+         */
+        public PreparedBatch take() {
+            return full.poll();
+        }
+
+        /**
+         * Called by the service thread, batches filled from now on prepare rows for this mix
+         */
+        public void setOpMix(double insertProb, double updateProb) {
+            if (hasOpMix && this.insertProb == insertProb && this.updateProb == updateProb)
+                return;
+            this.insertProb = insertProb;
+            this.updateProb = updateProb;
+            hasOpMix = true;
+            LockSupport.unpark(generator);
+        }
+
+        /**
+         * Called by the service thread once the rows of the batch are not needed anymore
+         */
+        public void recycle(PreparedBatch batch) {
+            free.offer(batch);
+            LockSupport.unpark(generator);
+        }
+    }
+}
@@ -1,20 +1,35 @@
 package ch.ethz.mbench.server.cassandra;
 
+import ch.ethz.mbench.server.LatencyStats;
 import ch.ethz.mbench.server.MbServer;
-import ch.ethz.mbench.server.Tuple;
-import com.datastax.driver.core.querybuilder.*;
+import ch.ethz.mbench.server.OpPlan;
+import ch.ethz.mbench.server.TupleBatch;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.cli.*;
 
 import java.io.IOException;
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 import org.apache.log4j.Logger;
 
-import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
-import static com.datastax.driver.core.querybuilder.QueryBuilder.set;
-
 /**
  * Cassandra implementation of micro-benchmark
  */
@@ -27,6 +42,27 @@ public class CassandraMbServer extends MbServer {
     // cassandra ring properties
     private String[] clNode;
     private String nodePort;
+    // asynchronous statements a connection may have outstanding
+    private int maxAsyncInFlight;
+    // writes per UNLOGGED batch, 0 sends every write on its own
+    private int maxWriteBatch;
+    // driver configuration, 0 or null leaves the driver default
+    private String loadBalancing;
+    private String localDc;
+    private int connectionsPerHost;
+    private int maxRequestsPerConnection;
+    private int timeoutMillis;
+    private long speculativeDelayMillis;
+    private int maxSpeculativeExecutions;
+    private ConsistencyLevel writeConsistency;
+    private ConsistencyLevel getConsistency;
+    private ConsistencyLevel queryConsistency;
+    // query1 as a parallel token range scan, 0 sub-ranges runs it as a single query
+    private int scanSplits;
+    private int scanThreads;
+    private int scanFetchSize;
+    // shared by the connections of all service threads, created with the first one
+    private SharedSession shared;
     public static Logger Log = Logger.getLogger(CassandraMbServer.class);
 
     public static void main(String args[]) {
@@ -40,59 +76,132 @@ public class CassandraMbServer extends MbServer {
     }
 
     @Override
-    protected Connection createConnection() {
-        return new CassandraConnection(clNode, nodePort, this.getNCols());
+    protected synchronized Connection createConnection() {
+        if (shared == null) {
+            shared = new SharedSession(buildCluster(), this.getNCols(), writeConsistency, getConsistency,
+                    queryConsistency);
+            if (scanSplits > 0)
+                shared.setScan(scanSplits, scanThreads, scanFetchSize);
+        }
+        return new CassandraConnection(shared, maxAsyncInFlight, maxWriteBatch);
     }
 
-
     /**
-     * Connection to Cassandra
+     * Cluster configured from the command line
      */
-    public static class CassandraConnection implements Connection {
+    private Cluster buildCluster() {
+        Cluster.Builder builder = Cluster.builder().withPort(Integer.parseInt(nodePort)).addContactPoints(clNode);
+        builder.withSocketOptions(new SocketOptions().setConnectTimeoutMillis(timeoutMillis)
+                .setReadTimeoutMillis(timeoutMillis));
+        // only hosts of the local data center are used by the policies below
+        PoolingOptions pooling = new PoolingOptions();
+        if (connectionsPerHost > 0)
+            pooling.setConnectionsPerHost(HostDistance.LOCAL, connectionsPerHost, connectionsPerHost);
+        if (maxRequestsPerConnection > 0)
+            pooling.setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection);
+        builder.withPoolingOptions(pooling);
+        DCAwareRoundRobinPolicy.Builder dcAware = DCAwareRoundRobinPolicy.builder();
+        if (localDc != null)
+            dcAware.withLocalDc(localDc);
+        switch (loadBalancing) {
+            case "round-robin":
+                builder.withLoadBalancingPolicy(new RoundRobinPolicy());
+                break;
+            case "dc-aware":
+                builder.withLoadBalancingPolicy(dcAware.build());
+                break;
+            default:
+                // statements go straight to a replica of their partition
+                builder.withLoadBalancingPolicy(new TokenAwarePolicy(dcAware.build()));
+                break;
+        }
+        if (speculativeDelayMillis > 0) {
+            builder.withSpeculativeExecutionPolicy(
+                    new ConstantSpeculativeExecutionPolicy(speculativeDelayMillis, maxSpeculativeExecutions));
+        }
+        return builder.build();
+    }
 
-        private static Cluster cluster = null;
-        private Session session;
-        private boolean sessionBound = false;
-        private int nCols;
-        PreparedStatement insertStmt, deleteStmt,query1Stmt, getStmt;
-
-        CassandraConnection(String nodes[], String port, int nCols) {
-            if (cluster == null) {
-                cluster = Cluster.builder().withPort(Integer.parseInt(port)).addContactPoints(nodes).build();
-                cluster.getConfiguration().getSocketOptions().setConnectTimeoutMillis(HIGHER_TIMEOUT);
-                cluster.getConfiguration().getSocketOptions().setReadTimeoutMillis(HIGHER_TIMEOUT);
-            }
-            session = cluster.connect();
+    /**
+     * Session shared by the connections of all service threads and the statements prepared on it.
+     * Statements name the keyspace, so the session does not need to be bound to it. They are prepared
+     * the first time a transaction starts, when the schema exists, and marked idempotent since they
+     * set fixed values, which lets the driver execute them speculatively.
+     */
+    public static class SharedSession {
+        private final Session session;
+        private final ConsistencyLevel writeConsistency;
+        private final ConsistencyLevel getConsistency;
+        private final ConsistencyLevel queryConsistency;
+        private volatile int nCols;
+        private volatile boolean prepared = false;
+        private PreparedStatement insertStmt, deleteStmt, query1Stmt, getStmt;
+        private int scanSplits;
+        private int scanThreads;
+        private int scanFetchSize;
+        // null when query1 runs as a single query
+        private TokenRangeScan scan;
+        // updates prepared so far, by mask of the columns they set
+        private final Map<Long, PreparedStatement> updateStmts = new ConcurrentHashMap<>();
+
+        SharedSession(Cluster cluster, int nCols, ConsistencyLevel writeConsistency,
+                      ConsistencyLevel getConsistency, ConsistencyLevel queryConsistency) {
+            this.session = cluster.connect();
             this.nCols = nCols;
+            this.writeConsistency = writeConsistency;
+            this.getConsistency = getConsistency;
+            this.queryConsistency = queryConsistency;
         }
 
-        private void rebindIfNecessary() {
-            if (!sessionBound) {
-                session = cluster.connect(CONTAINER);
-                sessionBound = true;
+        /**
+         * Runs query1 as a scan of the token ring in sub-ranges, see TokenRangeScan
+         */
+        void setScan(int splitsPerRange, int nThreads, int fetchSize) {
+            this.scanSplits = splitsPerRange;
+            this.scanThreads = nThreads;
+            this.scanFetchSize = fetchSize;
+        }
+
+        private void prepareIfNecessary() {
+            if (prepared)
+                return;
+            synchronized (this) {
+                if (prepared)
+                    return;
                 // insert
-                insertStmt = session.prepare(doInsertString());
-                insertStmt.setConsistencyLevel(ConsistencyLevel.ANY);
+                insertStmt = prepare(doInsertString(), writeConsistency);
                 // delete
-                deleteStmt = session.prepare(doDeleteString());
-                deleteStmt.setConsistencyLevel(ConsistencyLevel.ANY);
+                deleteStmt = prepare(doDeleteString(), writeConsistency);
                 // get
-                getStmt = session.prepare(doGetString());
-                getStmt.setConsistencyLevel(ConsistencyLevel.LOCAL_ONE);
+                getStmt = prepare(doGetString(), getConsistency);
                 // query1
-                query1Stmt = session.prepare(String.format("select max(a0) from %s.%s", CONTAINER, TABLE_NAME));
-                query1Stmt.setConsistencyLevel(ConsistencyLevel.ALL);
+                query1Stmt = prepare(String.format("select max(a0) from %s.%s", CONTAINER, TABLE_NAME),
+                        queryConsistency);
+                if (scanSplits > 0)
+                    scan = new TokenRangeScan(session, queryConsistency, scanSplits, scanThreads, scanFetchSize);
+                prepared = true;
             }
         }
 
-        @Override
-        public Transaction startTx() {
-            rebindIfNecessary();
-            return new CassandraTransaction(session, insertStmt, deleteStmt, query1Stmt, getStmt);
+        private PreparedStatement prepare(String query, ConsistencyLevel consistency) {
+            PreparedStatement stmt = session.prepare(query);
+            stmt.setConsistencyLevel(consistency);
+            stmt.setIdempotent(true);
+            return stmt;
         }
 
-        @Override
-        public void createSchema(int nCols) {
+        /**
+         * Update of the columns in a mask, prepared the first time the mask is seen.
+         * Updates only touch a few columns, so there are only few distinct masks.
+         */
+        PreparedStatement getUpdateStmt(long columnMask) {
+            PreparedStatement stmt = updateStmts.get(columnMask);
+            if (stmt == null)
+                stmt = updateStmts.computeIfAbsent(columnMask, m -> prepare(doUpdateString(m), writeConsistency));
+            return stmt;
+        }
+
+        synchronized void createSchema(int nCols) {
             // create keyspace
             this.nCols = nCols;
             StringBuilder sb = new StringBuilder();
@@ -148,7 +257,6 @@ public class CassandraMbServer extends MbServer {
             }
         }
 
-
         private  String doInsertString() {
             StringBuilder sb = new StringBuilder();
             StringBuilder params = new StringBuilder();
@@ -166,6 +274,22 @@ public class CassandraMbServer extends MbServer {
             return sb.toString();
         }
 
+        private  String doUpdateString(long columnMask) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("UPDATE ").append(CONTAINER).append(".").append(TABLE_NAME).append(" SET ");
+            boolean first = true;
+            for (int i = 0; i < nCols; i++) {
+                if ((columnMask & (1L << i)) == 0)
+                    continue;
+                if (!first)
+                    sb.append(",");
+                sb.append("A").append(i % 10).append(" = ?");
+                first = false;
+            }
+            sb.append(" WHERE id = ?");
+            return sb.toString();
+        }
+
         private  String doDeleteString() {
             StringBuilder sb = new StringBuilder();
             sb.append("DELETE FROM ").append(CONTAINER).append(".").append(TABLE_NAME).append(" WHERE id = ?");
@@ -181,54 +305,162 @@ public class CassandraMbServer extends MbServer {
     }
 
     /**
-     * Handles operations in Cassandra
+     * Connection of a service thread, a view on the shared session with its own in-flight limit
+     */
+    public static class CassandraConnection implements Connection {
+
+        private final SharedSession shared;
+        // bounds the statements executing asynchronously on behalf of this connection
+        private final Semaphore inFlight;
+        private final int maxWriteBatch;
+
+        CassandraConnection(SharedSession shared, int maxInFlight, int maxWriteBatch) {
+            this.shared = shared;
+            this.inFlight = new Semaphore(maxInFlight);
+            this.maxWriteBatch = maxWriteBatch;
+        }
+
+        @Override
+        public Transaction startTx() {
+            shared.prepareIfNecessary();
+            return new CassandraTransaction(shared, inFlight, maxWriteBatch);
+        }
+
+        @Override
+        public void createSchema(int nCols) {
+            shared.createSchema(nCols);
+        }
+    }
+
+    /**
+     * Handles operations in Cassandra.
+     * Statements are executed asynchronously as soon as they are added, at most as many at once as the
+     * connection has permits, and joined at commit. A batch thus takes about as long as its slowest
+     * statement instead of the sum of all round trips. Every statement's latency is taken from its
+     * start to its completion and recorded for each operation it carries once the batch committed.
+     * With a write batch size, inserts, updates and deletes are held back and grouped by the replica
+     * owning their partition, every group going out as one UNLOGGED batch once it is full or at commit.
      */
     public static class CassandraTransaction implements Transaction {
+        // operations a statement carries are counted in 16 bits per operation type
+        private static final int OP_BITS = 16;
+        public static final int MAX_WRITE_BATCH = (1 << OP_BITS) - 1;
+        // runs on the driver thread completing a statement
+        private static final Function<ResultSet, Long> COMPLETION_TIME = rs -> System.nanoTime();
+
+        private final SharedSession shared;
         private Session session;
-        private Vector<Statement> batch;
+        private final Semaphore inFlight;
+        private final int maxWriteBatch;
         private PreparedStatement insertStmt, deleteStmt, query1Stmt, getStmt;
-        private int batchCounter = 0;
-        private static int MAX_BATCH_SIZE = 100;
-        private Vector<BoundStatement> gets;
-
-        CassandraTransaction(Session sess, PreparedStatement insertStmt, PreparedStatement deleteStmt,
-                PreparedStatement query1Stmt, PreparedStatement getStmt) {
-            session = sess;
-            this.insertStmt = insertStmt;
-            this.deleteStmt = deleteStmt;
-            this.getStmt = getStmt;
-            this.query1Stmt = query1Stmt;
-            batch = new Vector();
-            gets = new Vector();
-        }
-
-        //adds to batch and executes it if necessary
-        private void addToBatch(Statement stmt) {
-            batch.add(stmt);
-            if (batchCounter++ >= MAX_BATCH_SIZE) {
-                for (Statement st: batch)
-                    session.execute(st);
-                batch.clear();
-                batchCounter = 0;
+        // completion times of the statements not joined yet, the operations each one carries and
+        // when it started
+        private final List<ListenableFuture<Long>> futures = new ArrayList<>();
+        private long[] futureOps = new long[16];
+        private long[] futureStart = new long[16];
+        // latencies of the statements joined by the last commit, -1 if the statement failed
+        private long[] futureNanos = new long[16];
+        private int nJoined;
+        private final int[] failedOps = new int[OpPlan.GET + 1];
+        private final Runnable release;
+        // writes held back, by first replica of their partition, null when the replica is unknown
+        private final Map<Host, PendingBatch> pending = new HashMap<>();
+
+        CassandraTransaction(SharedSession shared, Semaphore inFlight, int maxWriteBatch) {
+            this.shared = shared;
+            session = shared.session;
+            this.inFlight = inFlight;
+            this.maxWriteBatch = maxWriteBatch;
+            this.insertStmt = shared.insertStmt;
+            this.deleteStmt = shared.deleteStmt;
+            this.getStmt = shared.getStmt;
+            this.query1Stmt = shared.query1Stmt;
+            this.release = inFlight::release;
+        }
+
+        /**
+         * Writes to the partitions of one replica, sent together
+         */
+        private static class PendingBatch {
+            private final BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            private long ops;
+
+            PendingBatch(ConsistencyLevel consistency) {
+                batch.setConsistencyLevel(consistency);
+            }
+        }
+
+        private static long opCount(byte op) {
+            return 1L << (op * OP_BITS);
+        }
+
+        // operations of a type a statement carries
+        private static int opCount(long ops, int op) {
+            return (int) (ops >>> (op * OP_BITS)) & MAX_WRITE_BATCH;
+        }
+
+        // sends a write on its own or adds it to the batch of the replica owning the key
+        private void write(Statement stmt, long key, byte op) {
+            if (maxWriteBatch == 0) {
+                executeAsync(stmt, opCount(op));
+                return;
+            }
+            // the partition key is the bigint id
+            ByteBuffer routingKey = ByteBuffer.allocate(8);
+            routingKey.putLong(0, key);
+            Set<Host> replicas = session.getCluster().getMetadata().getReplicas(CONTAINER, routingKey);
+            Host replica = replicas.isEmpty() ? null : replicas.iterator().next();
+            PendingBatch group = pending.get(replica);
+            if (group == null) {
+                group = new PendingBatch(shared.writeConsistency);
+                pending.put(replica, group);
             }
+            group.batch.add(stmt);
+            group.ops += opCount(op);
+            if (group.batch.size() >= maxWriteBatch) {
+                pending.remove(replica);
+                executeAsync(group.batch, group.ops);
+            }
+        }
+
+        private void flushWrites() {
+            for (PendingBatch group : pending.values())
+                executeAsync(group.batch, group.ops);
+            pending.clear();
+        }
+
+        // starts executing a statement, waiting for a permit if too many are in flight
+        private void executeAsync(Statement stmt, long ops) {
+            inFlight.acquireUninterruptibly();
+            ResultSetFuture future;
+            long start = System.nanoTime();
+            try {
+                future = session.executeAsync(stmt);
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+            future.addListener(release, MoreExecutors.sameThreadExecutor());
+            if (futures.size() == futureOps.length) {
+                futureOps = Arrays.copyOf(futureOps, futureOps.length * 2);
+                futureStart = Arrays.copyOf(futureStart, futureOps.length);
+                futureNanos = Arrays.copyOf(futureNanos, futureOps.length);
+            }
+            futureOps[futures.size()] = ops;
+            futureStart[futures.size()] = start;
+            futures.add(Futures.transform(future, COMPLETION_TIME));
         }
 
         @Override
-        public boolean insert(Long key, Tuple value) {
+        public boolean insert(long key, TupleBatch tuples, int row) {
             boolean result = false;
             try {
-                QueryBuilder.insertInto(TABLE_NAME);
-                // setting field names up
-                String fieldNames[] = new String[1 + value.getFieldNames().length];
-                fieldNames[0] = "id";
-                System.arraycopy(value.getFieldNames(), 0, fieldNames, 1, value.getFieldNames().length);
-                // setting values up
-                Object fieldValues[] = new Object[1 + value.getFieldValues().length];
-                fieldValues[0] = key;
-                System.arraycopy(value.getFieldValues(), 0, fieldValues, 1, value.getFieldValues().length);
-                // preparing statement
-                BoundStatement insert = insertStmt.bind(fieldValues);
-                addToBatch(insert);
+                // binding key and field values in column order
+                BoundStatement insert = insertStmt.bind();
+                insert.setLong(0, key);
+                for (int c = 0; c < tuples.getNumCols(); c++)
+                    bindColumn(insert, c + 1, tuples, row, c);
+                write(insert, key, OpPlan.INSERT);
                 result = true;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -236,37 +468,95 @@ public class CassandraMbServer extends MbServer {
             return result;
         }
 
+        // binds a column value without boxing it
+        private static void bindColumn(BoundStatement stmt, int idx, TupleBatch tuples, int row, int col) {
+            switch (TupleBatch.columnType(col)) {
+                case TupleBatch.TYPE_DOUBLE:
+                    stmt.setDouble(idx, tuples.getDouble(row, col));
+                    break;
+                case TupleBatch.TYPE_INT:
+                    stmt.setInt(idx, tuples.getInt(row, col));
+                    break;
+                case TupleBatch.TYPE_SHORT:
+                    stmt.setShort(idx, tuples.getShort(row, col));
+                    break;
+                case TupleBatch.TYPE_LONG:
+                    stmt.setLong(idx, tuples.getLong(row, col));
+                    break;
+                case TupleBatch.TYPE_STRING:
+                    stmt.setString(idx, tuples.getString(row, col));
+                    break;
+            }
+        }
+
+        /**
+         * Sends the writes held back and waits for every statement started by the transaction,
+         * failures are counted per operation, a failed batch failing all the operations it carries
+         */
         @Override
         public boolean commit() {
-            boolean getRes = true;
+            boolean result = true;
             try {
-                if (gets != null && !gets.isEmpty()) {
-                    for (BoundStatement get : gets) {
-                        session.execute(get);
+                flushWrites();
+            } catch (Exception e) {
+                e.printStackTrace();
+                result = false;
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futureNanos[i] = Uninterruptibles.getUninterruptibly(futures.get(i)) - futureStart[i];
+                } catch (ExecutionException | RuntimeException e) {
+                    futureNanos[i] = -1;
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    for (int op = 0; op < failedOps.length; op++) {
+                        int n = opCount(futureOps[i], op);
+                        if (n > 0 && failedOps[op] == 0)
+                            Log.error("Asynchronous " + LatencyStats.getName(op) + " failed", cause);
+                        failedOps[op] += n;
                     }
                 }
-                if (batch != null && !batch.isEmpty() ) {
-                    for (Statement stmt : batch)
-                        session.execute(stmt);
+            }
+            nJoined = futures.size();
+            futures.clear();
+            return result;
+        }
+
+        @Override
+        public boolean isAsync() {
+            return true;
+        }
+
+        @Override
+        public void recordLatencies(LatencyStats latency) {
+            for (int i = 0; i < nJoined; i++) {
+                if (futureNanos[i] < 0)
+                    continue;
+                for (int op = 0; op <= OpPlan.GET; op++) {
+                    for (int n = opCount(futureOps[i], op); n > 0; n--)
+                        latency.record(op, futureNanos[i]);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                getRes = false;
             }
-            return getRes;
+            nJoined = 0;
+        }
+
+        @Override
+        public int getFailedOps(int op) {
+            return op < failedOps.length ? failedOps[op] : 0;
         }
 
         @Override
-        public boolean update(Long key, Tuple value) {
+        public boolean update(long key, TupleBatch tuples, int row) {
             boolean result = false;
             try {
-                Update update = QueryBuilder.update(CONTAINER, TABLE_NAME);
-                for (int i = 0; i < value.getNumFields(); i++) {
-                    if (value.getFieldValues() != null)
-                        update.with(set(value.getFieldNames()[i], value.getFieldValues()[i]));
+                // binding the columns set, in column order, then the key
+                BoundStatement update = shared.getUpdateStmt(tuples.getColumnMask(row)).bind();
+                int idx = 0;
+                for (int c = 0; c < tuples.getNumCols(); c++) {
+                    if (tuples.isSet(row, c))
+                        bindColumn(update, idx++, tuples, row, c);
                 }
-                update.where(eq("id", key));
-                addToBatch(update);
+                update.setLong(idx, key);
+                write(update, key, OpPlan.UPDATE);
                 result = true;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -275,12 +565,11 @@ public class CassandraMbServer extends MbServer {
         }
 
         @Override
-        public boolean remove(Long key) {
+        public boolean remove(long key) {
             boolean result = false;
             try {
                 BoundStatement delete = deleteStmt.bind(key);
-                delete.setConsistencyLevel(ConsistencyLevel.ANY);
-                addToBatch(delete);
+                write(delete, key, OpPlan.DELETE);
                 result = true;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -289,10 +578,10 @@ public class CassandraMbServer extends MbServer {
         }
 
         @Override
-        public boolean get(Long key) {
+        public boolean get(long key) {
             boolean result = false;
             try {
-                gets.add(getStmt.bind(key));
+                executeAsync(getStmt.bind(key), opCount(OpPlan.GET));
                 result = true;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -302,7 +591,11 @@ public class CassandraMbServer extends MbServer {
 
         @Override
         public long query1() {
-
+            // either way the answer is the single row holding max(a0)
+            if (shared.scan != null) {
+                shared.scan.scan();
+                return 1;
+            }
             ResultSet rs = session.execute(query1Stmt.bind());
             return rs.all().size();
         }
@@ -318,6 +611,26 @@ public class CassandraMbServer extends MbServer {
             commandLine = parser.parse(options, args);
             clNode = commandLine.getOptionValues("cn");
             nodePort = commandLine.getOptionValue("np", "9042");
+            maxAsyncInFlight = Integer.parseInt(commandLine.getOptionValue("ci", "256"));
+            maxWriteBatch = Integer.parseInt(commandLine.getOptionValue("cb", "0"));
+            if (maxWriteBatch < 0 || maxWriteBatch > CassandraTransaction.MAX_WRITE_BATCH)
+                throw new ParseException("Write batch size has to be within [0, " + CassandraTransaction.MAX_WRITE_BATCH + "]");
+            loadBalancing = commandLine.getOptionValue("clb", "token-aware");
+            if (!Arrays.asList("round-robin", "dc-aware", "token-aware").contains(loadBalancing))
+                throw new ParseException("Unknown load balancing policy " + loadBalancing);
+            localDc = commandLine.getOptionValue("cdc");
+            connectionsPerHost = Integer.parseInt(commandLine.getOptionValue("ccp", "0"));
+            maxRequestsPerConnection = Integer.parseInt(commandLine.getOptionValue("cmr", "0"));
+            timeoutMillis = Integer.parseInt(commandLine.getOptionValue("cto", Integer.toString(HIGHER_TIMEOUT)));
+            speculativeDelayMillis = Long.parseLong(commandLine.getOptionValue("cse", "0"));
+            maxSpeculativeExecutions = Integer.parseInt(commandLine.getOptionValue("csn", "1"));
+            writeConsistency = parseConsistency(commandLine.getOptionValue("cwc", "ANY"));
+            getConsistency = parseConsistency(commandLine.getOptionValue("cgc", "LOCAL_ONE"));
+            queryConsistency = parseConsistency(commandLine.getOptionValue("cqc", "ALL"));
+            scanSplits = Integer.parseInt(commandLine.getOptionValue("cqs", "0"));
+            scanThreads = Integer.parseInt(commandLine.getOptionValue("cqt",
+                    Integer.toString(2 * Runtime.getRuntime().availableProcessors())));
+            scanFetchSize = Integer.parseInt(commandLine.getOptionValue("cqf", "5000"));
         } catch (ParseException exception) {
             Log.error("Parse error: ");
             new HelpFormatter().printHelp("mbench-server", options);
@@ -325,11 +638,34 @@ public class CassandraMbServer extends MbServer {
         }
     }
 
+    private static ConsistencyLevel parseConsistency(String name) throws ParseException {
+        try {
+            return ConsistencyLevel.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unknown consistency level " + name);
+        }
+    }
+
     @Override
     public Options getCmdLineOptions() {
         Options options = super.getCmdLineOptions();
         options.addOption(Option.builder("cn").argName("cassandra-contact-points").hasArg().required(true).desc("Cassandra nodes ip").build());
         options.addOption(Option.builder("np").argName("cassandra-port").hasArg().desc("Cassandra port").build());
+        options.addOption(Option.builder("ci").argName("cassandra-in-flight").hasArg().desc("Max asynchronous statements in flight per connection").build());
+        options.addOption(Option.builder("cb").argName("cassandra-batch").hasArg().desc("Writes per UNLOGGED batch grouped by replica, 0 sends every write on its own").build());
+        options.addOption(Option.builder("clb").argName("cassandra-load-balancing").hasArg().desc("Load balancing policy: round-robin, dc-aware or token-aware").build());
+        options.addOption(Option.builder("cdc").argName("cassandra-local-dc").hasArg().desc("Local data center of the dc-aware policies").build());
+        options.addOption(Option.builder("ccp").argName("cassandra-connections").hasArg().desc("Connections per local host of the shared session").build());
+        options.addOption(Option.builder("cmr").argName("cassandra-max-requests").hasArg().desc("Max requests per connection to a local host").build());
+        options.addOption(Option.builder("cto").argName("cassandra-timeout").hasArg().desc("Driver connect and read timeout in milliseconds").build());
+        options.addOption(Option.builder("cse").argName("cassandra-speculative-delay").hasArg().desc("Milliseconds before a statement is executed speculatively on another host, 0 disables it").build());
+        options.addOption(Option.builder("csn").argName("cassandra-speculative-max").hasArg().desc("Max speculative executions per statement").build());
+        options.addOption(Option.builder("cwc").argName("cassandra-write-consistency").hasArg().desc("Consistency level of inserts, updates and deletes").build());
+        options.addOption(Option.builder("cgc").argName("cassandra-get-consistency").hasArg().desc("Consistency level of gets").build());
+        options.addOption(Option.builder("cqc").argName("cassandra-query-consistency").hasArg().desc("Consistency level of query1").build());
+        options.addOption(Option.builder("cqs").argName("cassandra-scan-splits").hasArg().desc("Run query1 as a parallel scan, splitting every token range this many times; 0 runs a single query").build());
+        options.addOption(Option.builder("cqt").argName("cassandra-scan-threads").hasArg().desc("Sub-ranges of the query1 scan read concurrently").build());
+        options.addOption(Option.builder("cqf").argName("cassandra-scan-fetch").hasArg().desc("Rows per page of the query1 scan").build());
         return options;
     }
 }
@@ -0,0 +1,115 @@
+package ch.ethz.mbench.server.cassandra;
+
+import com.datastax.driver.core.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static ch.ethz.mbench.server.cassandra.CassandraMbServer.CONTAINER;
+import static ch.ethz.mbench.server.cassandra.CassandraMbServer.Log;
+import static ch.ethz.mbench.server.cassandra.CassandraMbServer.TABLE_NAME;
+
+/**
+ * Query 1 as a parallel scan of the token ring.
+ * Every token range of the ring is split into sub-ranges which are scanned concurrently with paged
+ * token(id) range queries. A scan keeps the maximum of the rows it has seen so far while pages stream
+ * in, only these partial maxima are combined into max(a0), so no result is ever materialized and no
+ * coordinator has to scan the whole table.
+ */
+public class TokenRangeScan {
+
+    private final Session session;
+    private final PreparedStatement rangeStmt;
+    // sub-ranges ending at the smallest token of the ring, which a bounded range query cannot express
+    private final PreparedStatement tailStmt;
+    private final int splitsPerRange;
+    private final int fetchSize;
+    private final ExecutorService executor;
+
+    TokenRangeScan(Session session, ConsistencyLevel consistency, int splitsPerRange, int nThreads, int fetchSize) {
+        this.session = session;
+        this.splitsPerRange = splitsPerRange;
+        this.fetchSize = fetchSize;
+        String select = String.format("SELECT a0 FROM %s.%s WHERE token(id) > ?", CONTAINER, TABLE_NAME);
+        rangeStmt = session.prepare(select + " AND token(id) <= ?");
+        rangeStmt.setConsistencyLevel(consistency);
+        rangeStmt.setIdempotent(true);
+        tailStmt = session.prepare(select);
+        tailStmt.setConsistencyLevel(consistency);
+        tailStmt.setIdempotent(true);
+        executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "mbench-q1-scan");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Partial result of one sub-range, or of the whole ring once combined
+     */
+    private static class Partial {
+        private double max = Double.NEGATIVE_INFINITY;
+        private long rows;
+
+        void add(Partial other) {
+            max = Math.max(max, other.max);
+            rows += other.rows;
+        }
+    }
+
+    /**
+     * Scans the ring and returns max(a0), NaN if no row has a value. The number of rows scanned is
+     * only logged.
+     */
+    public double scan() {
+        List<Future<Partial>> futures = new ArrayList<>();
+        for (TokenRange range : session.getCluster().getMetadata().getTokenRanges()) {
+            for (TokenRange split : range.splitEvenly(splitsPerRange)) {
+                for (TokenRange subRange : split.unwrap())
+                    futures.add(executor.submit(() -> scan(subRange)));
+            }
+        }
+        Partial result = new Partial();
+        try {
+            for (Future<Partial> future : futures)
+                result.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning", e);
+        } catch (ExecutionException e) {
+            // cancel the sub-ranges not started yet, the ones running finish on their own
+            for (Future<Partial> future : futures)
+                future.cancel(false);
+            throw new IllegalStateException("Scanning a token range failed", e.getCause());
+        }
+        Log.info(String.format("Query 1 scanned %d rows in %d sub-ranges, max(a0)=%s", result.rows, futures.size(),
+                result.max == Double.NEGATIVE_INFINITY ? "null" : Double.toString(result.max)));
+        return result.max == Double.NEGATIVE_INFINITY ? Double.NaN : result.max;
+    }
+
+    private Partial scan(TokenRange range) {
+        BoundStatement stmt;
+        // after unwrapping, only a range ending at the smallest token ends before it starts
+        if (range.getEnd().compareTo(range.getStart()) <= 0) {
+            stmt = tailStmt.bind().setToken(0, range.getStart());
+        } else {
+            stmt = rangeStmt.bind().setToken(0, range.getStart()).setToken(1, range.getEnd());
+        }
+        stmt.setFetchSize(fetchSize);
+        Partial partial = new Partial();
+        ResultSet rs = session.execute(stmt);
+        for (Row row : rs) {
+            // ask for the next page while this one is being consumed
+            if (rs.getAvailableWithoutFetching() == fetchSize / 2 && !rs.isFullyFetched())
+                rs.fetchMoreResults();
+            partial.rows++;
+            if (!row.isNull(0))
+                partial.max = Math.max(partial.max, row.getDouble(0));
+        }
+        return partial;
+    }
+}
@@ -1,7 +1,7 @@
 package ch.ethz.mbench.server.hbase;
 
 import ch.ethz.mbench.server.MbServer;
-import ch.ethz.mbench.server.Tuple;
+import ch.ethz.mbench.server.TupleBatch;
 import org.apache.commons.cli.*;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
@@ -26,6 +26,13 @@ public class HbaseMbServer extends MbServer {
     public static final String CONTAINER = "mbench";
     public static final String TABLE_NAME = "maintable";
     public static Logger Log = Logger.getLogger(HbaseMbServer.class);
+    // column family and qualifiers are encoded once
+    private static final byte[] FAMILY = Bytes.toBytes(TABLE_NAME);
+    private static final byte[][] COLUMN_QUALIFIERS = new byte[10][];
+    static {
+        for (int i = 0; i < COLUMN_QUALIFIERS.length; i++)
+            COLUMN_QUALIFIERS[i] = Bytes.toBytes(TupleBatch.columnName(i));
+    }
 
 
     // class attributes
@@ -114,66 +121,33 @@ public class HbaseMbServer extends MbServer {
         }
 
         @Override
-        public boolean insert(Long key, Tuple value) {
+        public boolean insert(long key, TupleBatch tuples, int row) {
             boolean result = false;
             try {
                 Put put = new Put(Bytes.toBytes(key));
-                for (int i = 0; i < value.getNumFields(); i++) {
-                    if (value.getFieldValues()[i] != null)
-                        switch (i) {
-                            case 0:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((double) value.getFieldValues()[i]));
-                                break;
-                            case 1:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((int) value.getFieldValues()[i]));
-                                break;
-                            case 2:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((int) value.getFieldValues()[i]));
-                                break;
-                            case 3:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((short) value.getFieldValues()[i]));
-                                break;
-                            case 4:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((short) value.getFieldValues()[i]));
-                                break;
-                            case 5:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((long) value.getFieldValues()[i]));
-                                break;
-                            case 6:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((long) value.getFieldValues()[i]));
-                                break;
-                            case 7:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((double) value.getFieldValues()[i]));
-                                break;
-                            case 8:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((String) value.getFieldValues()[i]));
-                                break;
-                            case 9:
-                                put.addColumn(Bytes.toBytes(TABLE_NAME),
-                                        Bytes.toBytes(value.getFieldNames()[i]),
-                                        Bytes.toBytes((String) value.getFieldValues()[i]));
-                                break;
-                            default:
-                                throw new RuntimeException("Number of columns not supported");
-                        }
+                for (int i = 0; i < tuples.getNumCols(); i++) {
+                    if (!tuples.isSet(row, i))
+                        continue;
+                    byte[] qualifier = COLUMN_QUALIFIERS[i % 10];
+                    switch (TupleBatch.columnType(i)) {
+                        case TupleBatch.TYPE_DOUBLE:
+                            put.addColumn(FAMILY, qualifier, Bytes.toBytes(tuples.getDouble(row, i)));
+                            break;
+                        case TupleBatch.TYPE_INT:
+                            put.addColumn(FAMILY, qualifier, Bytes.toBytes(tuples.getInt(row, i)));
+                            break;
+                        case TupleBatch.TYPE_SHORT:
+                            put.addColumn(FAMILY, qualifier, Bytes.toBytes(tuples.getShort(row, i)));
+                            break;
+                        case TupleBatch.TYPE_LONG:
+                            put.addColumn(FAMILY, qualifier, Bytes.toBytes(tuples.getLong(row, i)));
+                            break;
+                        case TupleBatch.TYPE_STRING:
+                            put.addColumn(FAMILY, qualifier, tuples.getStringBytes(row, i));
+                            break;
+                        default:
+                            throw new RuntimeException("Number of columns not supported");
+                    }
                 }
                 hTable.put(put);
                 result = true;
@@ -198,12 +172,12 @@ public class HbaseMbServer extends MbServer {
         }
 
         @Override
-        public boolean update(Long key, Tuple value) {
-            return insert(key, value);
+        public boolean update(long key, TupleBatch tuples, int row) {
+            return insert(key, tuples, row);
         }
 
         @Override
-        public boolean remove(Long key) {
+        public boolean remove(long key) {
             boolean result = false;
             try {
                 Delete delete = new Delete(Bytes.toBytes(key));
@@ -216,7 +190,7 @@ public class HbaseMbServer extends MbServer {
         }
 
         @Override
-        public boolean get(Long key) {
+        public boolean get(long key) {
             boolean result = false;
             try {
                 Get get = new Get(Bytes.toBytes(key));